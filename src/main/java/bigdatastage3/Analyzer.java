@@ -0,0 +1,55 @@
+package bigdatastage3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns text into index terms. The same analyzer must be used on the index
+ * side (IndexAPI) and the query side (SearchAPI), otherwise terms won't match.
+ *
+ * The implementation is chosen with the ANALYZER environment variable:
+ * "standard" (default) or the fully qualified name of a class implementing
+ * this interface with a public no-arg constructor.
+ */
+public interface Analyzer {
+
+  /** Receives every token together with its character offsets in the analyzed text. */
+  @FunctionalInterface
+  interface TokenConsumer {
+    void accept(String term, int startOffset, int endOffset);
+  }
+
+  void analyze(CharSequence text, TokenConsumer consumer);
+
+  /**
+   * Folds a single word the way analyze() would, but without dropping
+   * stopwords or stemming. Used for prefixes of wildcard queries.
+   */
+  String normalize(String word);
+
+  /**
+   * Identifies the analyzer and its configuration. Terms produced elsewhere
+   * (e.g. at ingest time) are only used if they came from the same signature.
+   */
+  default String signature() {
+    return getClass().getName();
+  }
+
+  default List<String> terms(CharSequence text) {
+    List<String> terms = new ArrayList<>();
+    analyze(text, (term, start, end) -> terms.add(term));
+    return terms;
+  }
+
+  static Analyzer fromEnv() {
+    String name = System.getenv().getOrDefault("ANALYZER", "standard");
+    if (name.isBlank() || name.equalsIgnoreCase("standard")) {
+      return StandardAnalyzer.fromEnv();
+    }
+    try {
+      return (Analyzer) Class.forName(name).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalStateException("Cannot create analyzer '" + name + "'", e);
+    }
+  }
+}
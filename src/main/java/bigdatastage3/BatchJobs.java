@@ -0,0 +1,217 @@
+package bigdatastage3;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Asynchronous batch jobs of the ControllingUnit.
+ *
+ * A job ingests a deduplicated list of book ids with a bounded number of
+ * concurrent calls and records the outcome of every book. Each job is kept
+ * as a JSON file in control/jobs; on startup RUNNING jobs are resumed with
+ * the books that have no outcome yet.
+ */
+public class BatchJobs {
+
+  /** Processes one book and returns its outcome, e.g. "success". */
+  @FunctionalInterface
+  public interface BookProcessor {
+    String process(int bookId) throws Exception;
+  }
+
+  static final String PENDING = "pending";
+  private static final long SAVE_INTERVAL_MS = 1_000;
+  private static final Gson GSON = new Gson();
+
+  private final Path dir;
+  private final BookProcessor processor;
+  private final int maxParallelism;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+  static final class Job {
+    String id;
+    String status;
+    int parallelism;
+    long createdAt;
+    long finishedAt;
+    int succeeded;
+    int skipped;
+    int failed;
+    // book id -> "pending", "success", "already_processed" or "error: ..."
+    LinkedHashMap<String, String> outcomes = new LinkedHashMap<>();
+    transient long savedAt;
+  }
+
+  public BatchJobs(Path dir, int maxParallelism, BookProcessor processor) throws IOException {
+    this.dir = dir;
+    this.maxParallelism = maxParallelism;
+    this.processor = processor;
+    Files.createDirectories(dir);
+    resumeJobs();
+  }
+
+  /** Creates and starts a job; duplicate ids are ingested once. */
+  public Map<String, Object> submit(List<Integer> bookIds, int parallelism) throws IOException {
+    Job job = new Job();
+    job.id = UUID.randomUUID().toString();
+    job.status = "RUNNING";
+    job.parallelism = Math.max(1, Math.min(parallelism, maxParallelism));
+    job.createdAt = System.currentTimeMillis();
+    for (int id : new LinkedHashSet<>(bookIds)) {
+      job.outcomes.put(String.valueOf(id), PENDING);
+    }
+    jobs.put(job.id, job);
+    save(job);
+    start(job);
+    return summary(job, false);
+  }
+
+  public Map<String, Object> get(String jobId, boolean details) {
+    Job job = jobs.get(jobId);
+    return job == null ? null : summary(job, details);
+  }
+
+  public List<Map<String, Object>> list() {
+    List<Job> all = new ArrayList<>(jobs.values());
+    all.sort(Comparator.comparingLong((Job j) -> j.createdAt).reversed());
+    List<Map<String, Object>> out = new ArrayList<>();
+    for (Job job : all) out.add(summary(job, false));
+    return out;
+  }
+
+  // ---------------------- execution ----------------------
+
+  private void start(Job job) {
+    List<Integer> todo = new ArrayList<>();
+    synchronized (job) {
+      job.outcomes.forEach((id, outcome) -> {
+        if (PENDING.equals(outcome)) todo.add(Integer.parseInt(id));
+      });
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(job.parallelism, r -> {
+      Thread t = new Thread(r, "batch-" + job.id.substring(0, 8));
+      t.setDaemon(true);
+      return t;
+    });
+    for (int bookId : todo) {
+      pool.submit(() -> runBook(job, bookId));
+    }
+    pool.shutdown();
+
+    // finish the job once the last book is through
+    Thread waiter = new Thread(() -> {
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      synchronized (job) {
+        job.status = "DONE";
+        job.finishedAt = System.currentTimeMillis();
+      }
+      saveQuietly(job, true);
+      System.out.printf("✅ Batch job %s finished: %d ok, %d skipped, %d failed%n",
+          job.id, job.succeeded, job.skipped, job.failed);
+    }, "batch-wait-" + job.id.substring(0, 8));
+    waiter.setDaemon(true);
+    waiter.start();
+    System.out.printf("📦 Batch job %s running %d books with parallelism %d%n", job.id, todo.size(), job.parallelism);
+  }
+
+  private void runBook(Job job, int bookId) {
+    String outcome;
+    try {
+      outcome = processor.process(bookId);
+    } catch (Exception e) {
+      outcome = "error: " + e.getMessage();
+    }
+    synchronized (job) {
+      job.outcomes.put(String.valueOf(bookId), outcome);
+      if (outcome.startsWith("error")) job.failed++;
+      else if (outcome.equals("success")) job.succeeded++;
+      else job.skipped++;
+    }
+    saveQuietly(job, false);
+  }
+
+  private Map<String, Object> summary(Job job, boolean details) {
+    synchronized (job) {
+      int done = job.succeeded + job.skipped + job.failed;
+      long end = job.finishedAt > 0 ? job.finishedAt : System.currentTimeMillis();
+      double seconds = Math.max(0.001, (end - job.createdAt) / 1000.0);
+
+      Map<String, Object> out = new LinkedHashMap<>();
+      out.put("job_id", job.id);
+      out.put("status", job.status);
+      out.put("total", job.outcomes.size());
+      out.put("done", done);
+      out.put("succeeded", job.succeeded);
+      out.put("skipped", job.skipped);
+      out.put("failed", job.failed);
+      out.put("parallelism", job.parallelism);
+      out.put("books_per_sec", Math.round(done / seconds * 100) / 100.0);
+      out.put("created_at", job.createdAt);
+      if (job.finishedAt > 0) out.put("finished_at", job.finishedAt);
+      if (details) out.put("outcomes", new LinkedHashMap<>(job.outcomes));
+      return out;
+    }
+  }
+
+  // ---------------------- persistence ----------------------
+
+  private void saveQuietly(Job job, boolean force) {
+    try {
+      long now = System.currentTimeMillis();
+      synchronized (job) {
+        if (!force && now - job.savedAt < SAVE_INTERVAL_MS) return;
+        job.savedAt = now;
+      }
+      save(job);
+    } catch (IOException e) {
+      System.err.println("⚠ Failed to save batch job " + job.id + ": " + e.getMessage());
+    }
+  }
+
+  private void save(Job job) throws IOException {
+    String json;
+    synchronized (job) {
+      json = GSON.toJson(job);
+    }
+    Path file = dir.resolve(job.id + ".json");
+    Path tmp = dir.resolve(job.id + ".json.tmp");
+    synchronized (this) {
+      Files.writeString(tmp, json, StandardCharsets.UTF_8);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private void resumeJobs() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files.filter(p -> p.toString().endsWith(".json"))::iterator) {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+          Job job = GSON.fromJson(reader, Job.class);
+          if (job == null || job.id == null) continue;
+          jobs.put(job.id, job);
+          if ("RUNNING".equals(job.status)) {
+            System.out.println("🔁 Resuming batch job " + job.id);
+            start(job);
+          }
+        } catch (Exception e) {
+          System.err.println("⚠ Skipping unreadable batch job " + file + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+}
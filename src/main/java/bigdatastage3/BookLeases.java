@@ -0,0 +1,266 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases on books being indexed, so a crashed indexer only costs the books
+ * it had in flight.
+ *
+ * Claiming a book sets indexStatus INDEXING together with an owner, a lease
+ * expiry (leaseUntil) and an attempt counter. While a book is processed its
+ * lease is renewed by a heartbeat. A sweeper on every indexer looks for
+ * INDEXING books whose lease ran out: they are set back to NEW and queued
+ * again, or PARKED once they used up their attempts. Books that fail with an
+ * error take the same way, except that the indexing queue redelivers their
+ * message itself (see {@link MessageBroker}).
+ *
+ * Books marked by a reindex range are covered by the range lease; if a range
+ * lease stays expired for another lease period, nobody continues the run and
+ * its books are queued individually.
+ *
+ * Configuration (environment):
+ * - INDEX_LEASE_SEC: lease duration, renewed every third of it
+ * - INDEX_MAX_ATTEMPTS: attempts before a book is parked
+ * - INDEX_SWEEP_SEC: sweeper interval
+ */
+public class BookLeases {
+
+  private static final int SWEEP_LIMIT = 500;
+
+  private final MongoCollection<Document> books;
+  private final MongoCollection<Document> rangeLeases;
+  private final MessageBroker broker;
+  private final String owner;
+  private final long leaseMs;
+  private final int maxAttempts;
+  private final long sweepMs;
+  private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "book-leases");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public BookLeases(MongoCollection<Document> books, MongoDatabase indexDb, MessageBroker broker, String owner,
+      long leaseMs, int maxAttempts, long sweepMs) {
+    this.books = books;
+    this.rangeLeases = indexDb.getCollection(ReindexingWorker.LEASES);
+    this.broker = broker;
+    this.owner = owner;
+    this.leaseMs = leaseMs;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.sweepMs = sweepMs;
+  }
+
+  public static BookLeases fromEnv(MongoCollection<Document> books, MongoDatabase indexDb, MessageBroker broker) {
+    Map<String, String> env = System.getenv();
+    String owner = env.getOrDefault("HOSTNAME", "indexer") + "-" + UUID.randomUUID().toString().substring(0, 8);
+    return new BookLeases(books, indexDb, broker, owner,
+        Long.parseLong(env.getOrDefault("INDEX_LEASE_SEC", "60")) * 1000,
+        Integer.parseInt(env.getOrDefault("INDEX_MAX_ATTEMPTS", "3")),
+        Long.parseLong(env.getOrDefault("INDEX_SWEEP_SEC", "30")) * 1000);
+  }
+
+  /** Starts heartbeat and sweeper. */
+  public BookLeases start() {
+    long heartbeat = Math.max(1_000, leaseMs / 3);
+    timer.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    timer.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    System.out.printf("⏱ Book leases: %d s, %d attempts, sweep every %d s (owner %s)%n",
+        leaseMs / 1000, maxAttempts, sweepMs / 1000, owner);
+    return this;
+  }
+
+  /** Update that claims a book: INDEXING, leased to this indexer, one more attempt. */
+  public Bson claim() {
+    return claim(false);
+  }
+
+  /** @param fresh start counting attempts again, e.g. for a book replayed from the dead-letter queue */
+  public Bson claim(boolean fresh) {
+    return Updates.combine(
+        Updates.set("indexStatus", "INDEXING"),
+        Updates.set("indexStartedAt", new Date()),
+        Updates.set("indexOwner", owner),
+        Updates.set("leaseUntil", new Date(System.currentTimeMillis() + leaseMs)),
+        fresh ? Updates.set("indexAttempts", 1) : Updates.inc("indexAttempts", 1));
+  }
+
+  public int maxAttempts() {
+    return maxAttempts;
+  }
+
+  /** Claims a book a reindex range marked; false if it was requeued meanwhile. */
+  public boolean claimInRange(int bookId, String rangeLease) {
+    return books.updateOne(
+        Filters.and(Filters.eq("id", bookId), Filters.eq("indexStatus", "INDEXING"),
+            Filters.eq("indexLease", rangeLease)),
+        claim()).getModifiedCount() == 1;
+  }
+
+  /**
+   * Filter for a book this indexer still holds: INDEXING under its lease. A
+   * book that was reset or taken over meanwhile no longer matches.
+   */
+  public Bson held(int bookId) {
+    return Filters.and(Filters.eq("id", bookId), Filters.eq("indexStatus", "INDEXING"),
+        Filters.eq("indexOwner", owner));
+  }
+
+  /** Fields to remove once a book is indexed. */
+  public static Bson cleared() {
+    return Updates.combine(
+        Updates.unset("indexOwner"),
+        Updates.unset("leaseUntil"),
+        Updates.unset("indexLease"),
+        Updates.unset("indexAttempts"),
+        Updates.unset("indexError"));
+  }
+
+  /** The heartbeat renews the lease of the book until {@link #untrack(int)}. */
+  public void track(int bookId) {
+    inFlight.add(bookId);
+  }
+
+  public void untrack(int bookId) {
+    inFlight.remove(bookId);
+  }
+
+  /** The book failed on this indexer: queue it again or park it. */
+  public void failed(int bookId, String error) {
+    failed(bookId, error, true);
+  }
+
+  /**
+   * @param requeue send document.ingested for the book; false if the caller's
+   *                message is redelivered anyway
+   * @return true if the book was parked
+   */
+  public boolean failed(int bookId, String error, boolean requeue) {
+    Bson ours = Filters.eq("indexOwner", owner);
+    Document book = books.find(Filters.and(Filters.eq("id", bookId), ours))
+        .projection(Projections.include("id", "indexAttempts"))
+        .first();
+    if (book == null) return false; // the lease was taken over already
+    return release(book, ours, error == null ? "unknown error" : error, requeue)
+        && book.getInteger("indexAttempts", 0) >= maxAttempts;
+  }
+
+  // ---------------------- heartbeat and sweeper ----------------------
+
+  private void heartbeat() {
+    if (inFlight.isEmpty()) return;
+    try {
+      books.updateMany(
+          Filters.and(Filters.in("id", new ArrayList<>(inFlight)), Filters.eq("indexOwner", owner),
+              Filters.eq("indexStatus", "INDEXING")),
+          Updates.set("leaseUntil", new Date(System.currentTimeMillis() + leaseMs)));
+    } catch (Exception e) {
+      System.err.println("⚠ Lease heartbeat failed: " + e.getMessage());
+    }
+  }
+
+  void sweep() {
+    try {
+      Date now = new Date();
+      // expired leases
+      int released = sweep(Filters.lt("leaseUntil", now));
+      // claims from before leases existed
+      released += sweep(Filters.and(
+          Filters.exists("leaseUntil", false),
+          Filters.exists("indexLease", false),
+          Filters.lt("indexStartedAt", new Date(now.getTime() - leaseMs))));
+      released += sweepAbandonedRanges(now);
+      if (released > 0) {
+        System.out.printf("🧹 Lease sweeper released %d books%n", released);
+      }
+    } catch (Exception e) {
+      System.err.println("⚠ Lease sweep failed: " + e.getMessage());
+    }
+  }
+
+  private int sweep(Bson expired) {
+    Bson stuck = Filters.and(Filters.eq("indexStatus", "INDEXING"), expired);
+    List<Document> candidates = books.find(stuck)
+        .projection(Projections.include("id", "indexAttempts"))
+        .limit(SWEEP_LIMIT)
+        .into(new ArrayList<>());
+    int released = 0;
+    for (Document book : candidates) {
+      // the filter is repeated, so a renewed lease or another sweeper wins
+      if (release(book, stuck, "lease expired", true)) released++;
+    }
+    return released;
+  }
+
+  /** Range leases nobody renewed for a whole extra period: their run is gone. */
+  private int sweepAbandonedRanges(Date now) {
+    int released = 0;
+    Document range;
+    while ((range = rangeLeases.findOneAndUpdate(
+        Filters.and(Filters.eq("status", "LEASED"), Filters.lt("leaseUntil", new Date(now.getTime() - leaseMs))),
+        Updates.combine(Updates.set("status", "DONE"), Updates.set("abandoned", true)))) != null) {
+
+      Bson marked = Filters.and(Filters.eq("indexLease", range.getString("_id")),
+          Filters.eq("indexStatus", "INDEXING"), Filters.exists("leaseUntil", false));
+      try (MongoCursor<Document> cursor = books.find(marked)
+          .projection(Projections.include("id", "indexAttempts")).iterator()) {
+        while (cursor.hasNext()) {
+          if (release(cursor.next(), marked, "reindex range abandoned", true)) released++;
+        }
+      }
+    }
+    return released;
+  }
+
+  /**
+   * Back to NEW and onto the queue, or PARKED after the last attempt.
+   *
+   * @param guard   must still match the book, otherwise nothing is changed
+   * @param requeue false leaves sending the book again to the caller
+   */
+  private boolean release(Document book, Bson guard, String reason, boolean requeue) {
+    int bookId = book.getInteger("id");
+    int attempts = book.getInteger("indexAttempts", 0);
+    boolean park = attempts >= maxAttempts;
+
+    Bson update = Updates.combine(
+        Updates.set("indexStatus", park ? "PARKED" : "NEW"),
+        Updates.set("indexError", reason),
+        Updates.unset("indexOwner"),
+        Updates.unset("leaseUntil"),
+        Updates.unset("indexLease"));
+    if (books.updateOne(Filters.and(Filters.eq("id", bookId), guard), update).getModifiedCount() == 0) {
+      return false;
+    }
+
+    try {
+      if (park) {
+        System.err.printf("🅿 Parked book %d after %d attempts (%s)%n", bookId, attempts, reason);
+        broker.sendDocumentFailed(bookId, "index", "parked after " + attempts + " attempts: " + reason);
+      } else if (requeue) {
+        System.out.printf("🔁 Requeued book %d (attempt %d of %d failed: %s)%n", bookId, attempts, maxAttempts,
+            reason);
+        broker.sendDocumentIngested(bookId);
+      }
+    } catch (Exception e) {
+      System.err.printf("❌ Broker callback failed for book %d: %s%n", bookId, e.getMessage());
+    }
+    return true;
+  }
+}
@@ -0,0 +1,554 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+
+import org.bson.Document;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Builds a whole index generation offline with a sort-merge instead of one
+ * upsert per (term, book).
+ *
+ * 1. scan: all ingested books are read in id order. Their distinct terms are
+ *    collected as term -> book ids in memory and spilled to a sorted run file
+ *    whenever the memory budget is used up. Their forward index entries for
+ *    the generation are written on the way.
+ * 2. merge: the runs are merged k-way by term. Books were scanned in id order,
+ *    so the postings of a term are the concatenation of its runs' lists. Each
+ *    term is written exactly once, with unordered insertMany per bucket.
+ * 3. index: a unique index on term is created per bucket after the load.
+ * 4. catch-up: the new generation is opened for live writes, books indexed
+ *    live during the build are added with upserts, books deleted during the
+ *    build are pulled out again.
+ * 5. mark: the scanned books are marked as indexed, unless they were changed
+ *    or deleted since they were scanned.
+ *
+ * Configuration (environment):
+ * - REINDEX_BULK_MEMORY_MB: memory budget of the in-memory postings
+ * - REINDEX_BULK_TMP_DIR: directory for the run files
+ */
+public class BulkIndexBuilder {
+
+  private static final int INSERT_BATCH_DOCS = 1_000;
+  private static final long INSERT_BATCH_BYTES = 8L * 1024 * 1024;
+  private static final int MARK_BATCH = 1_000;
+  // rough heap cost of a term entry: map node, string, postings holder
+  private static final int TERM_OVERHEAD_BYTES = 112;
+  // catch-up starts this much before the scan, for a primary whose clock differs after a failover
+  private static final long CATCH_UP_MARGIN_MS = 60_000;
+  // books live indexing or deletion owns; the scan must not mark them
+  private static final List<String> NOT_MARKABLE = List.of("NEW", "INDEXING", "DELETING", "DELETED");
+
+  private final MongoCollection<Document> books;
+  private final MongoDatabase indexDb;
+  private final ContentStore contentStore;
+  private final IndexGenerations generations;
+  private final ForwardIndex forwardIndex;
+  private final Analyzer analyzer = Analyzer.fromEnv();
+  private final Path tmpDir;
+  private final long memoryBudget;
+
+  private record BookTerms(Collection<String> terms, String fingerprint) {
+  }
+
+  private record BuiltBook(String fingerprint, boolean backfillHash) {
+  }
+
+  public BulkIndexBuilder(MongoCollection<Document> books, MongoDatabase indexDb, ContentStore contentStore,
+      IndexGenerations generations, Path tmpDir, long memoryBudget) {
+    this.books = books;
+    this.indexDb = indexDb;
+    this.contentStore = contentStore;
+    this.generations = generations;
+    this.forwardIndex = new ForwardIndex(indexDb);
+    this.tmpDir = tmpDir;
+    this.memoryBudget = Math.max(1024 * 1024, memoryBudget);
+  }
+
+  public static BulkIndexBuilder fromEnv(MongoCollection<Document> books, MongoDatabase indexDb,
+      ContentStore contentStore, IndexGenerations generations) {
+    Map<String, String> env = System.getenv();
+    long budgetMb = Long.parseLong(env.getOrDefault("REINDEX_BULK_MEMORY_MB", "256"));
+    String dir = env.getOrDefault("REINDEX_BULK_TMP_DIR", "");
+    Path tmp = Path.of(dir.isBlank() ? System.getProperty("java.io.tmpdir") : dir);
+    return new BulkIndexBuilder(books, indexDb, contentStore, generations, tmp, budgetMb * 1024 * 1024);
+  }
+
+  /**
+   * Builds the generation, which must be new and empty.
+   *
+   * @return counts and phase timings
+   */
+  public Map<String, Object> build(int generation) throws IOException {
+    Files.createDirectories(tmpDir);
+    long start = System.currentTimeMillis();
+    Map<String, Object> phases = new LinkedHashMap<>();
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("generation", generation);
+
+    List<Path> runs = new ArrayList<>();
+    try {
+      // 1. scan and spill
+      long phaseStart = System.currentTimeMillis();
+      Date scanStartedAt = catchUpCutoff();
+      Map<Integer, BuiltBook> built = new LinkedHashMap<>();
+      List<Integer> failed = new ArrayList<>();
+      long postings = scan(generation, runs, built, failed);
+      phases.put("scan_ms", System.currentTimeMillis() - phaseStart);
+
+      // 2. merge and load
+      phaseStart = System.currentTimeMillis();
+      Set<String> collections = new LinkedHashSet<>();
+      long terms = merge(generation, runs, collections);
+      phases.put("merge_ms", System.currentTimeMillis() - phaseStart);
+
+      // 3. term indexes, built once after the load
+      phaseStart = System.currentTimeMillis();
+      for (String name : collections) {
+        indexDb.getCollection(name).createIndex(Indexes.ascending("term"), new IndexOptions().unique(true));
+      }
+      phases.put("index_ms", System.currentTimeMillis() - phaseStart);
+
+      // 4. books indexed live while we were building
+      phaseStart = System.currentTimeMillis();
+      generations.openForWrites(generation);
+      Set<Integer> caughtUp = catchUp(generation, scanStartedAt);
+      int deleted = catchUpDeletes(generation, scanStartedAt);
+      phases.put("catch_up_ms", System.currentTimeMillis() - phaseStart);
+
+      // 5. book status
+      phaseStart = System.currentTimeMillis();
+      mark(built, caughtUp, failed);
+      phases.put("mark_ms", System.currentTimeMillis() - phaseStart);
+
+      report.put("books", built.size());
+      report.put("failed", failed.size());
+      report.put("caught_up", caughtUp.size());
+      report.put("deleted", deleted);
+      report.put("terms", terms);
+      report.put("postings", postings);
+      report.put("runs", runs.size());
+      report.put("spilled_bytes", runs.stream().mapToLong(BulkIndexBuilder::sizeOf).sum());
+      report.put("memory_budget_mb", memoryBudget / (1024 * 1024));
+      report.put("phases", phases);
+      report.put("total_ms", System.currentTimeMillis() - start);
+      System.out.println("🏁 Bulk index build finished: " + report);
+      return report;
+    } finally {
+      for (Path run : runs) {
+        Files.deleteIfExists(run);
+      }
+    }
+  }
+
+  // ---------------------- scan ----------------------
+
+  private long scan(int generation, List<Path> runs, Map<Integer, BuiltBook> built, List<Integer> failed)
+      throws IOException {
+    Map<String, Postings> buffer = new HashMap<>();
+    List<WriteModel<Document>> forward = new ArrayList<>();
+    long bufferBytes = 0;
+    long postings = 0;
+
+    try (MongoCursor<Document> cursor = books.find(Filters.eq("ingestStatus", "DONE"))
+        .projection(Projections.include("id", "contentHash"))
+        .sort(Sorts.ascending("id"))
+        .batchSize(1_000)
+        .iterator()) {
+
+      while (cursor.hasNext()) {
+        Document doc = cursor.next();
+        Integer id = doc.getInteger("id");
+        if (id == null) continue;
+
+        String contentHash = doc.getString("contentHash");
+        BookTerms bookTerms;
+        try {
+          bookTerms = readTerms(id, contentHash);
+        } catch (Exception e) {
+          System.err.printf("⚠ Skipping book %d in bulk build: %s%n", id, e.getMessage());
+          failed.add(id);
+          continue;
+        }
+
+        for (String term : bookTerms.terms()) {
+          Postings list = buffer.get(term);
+          if (list == null) {
+            list = new Postings();
+            buffer.put(term, list);
+            bufferBytes += TERM_OVERHEAD_BYTES + 2L * term.length();
+          }
+          bufferBytes += list.add(id);
+        }
+        postings += bookTerms.terms().size();
+        built.put(id, new BuiltBook(bookTerms.fingerprint(), contentHash == null));
+        forward.add(forwardIndex.putModel(generation, id, bookTerms.terms()));
+        if (forward.size() >= MARK_BATCH) {
+          forwardIndex.putAll(forward);
+          forward.clear();
+        }
+
+        if (bufferBytes >= memoryBudget) {
+          runs.add(spill(generation, runs.size(), buffer));
+          buffer.clear();
+          bufferBytes = 0;
+        }
+      }
+    }
+    forwardIndex.putAll(forward);
+    if (!buffer.isEmpty()) {
+      runs.add(spill(generation, runs.size(), buffer));
+    }
+    System.out.printf("📚 Bulk scan: %d books, %d postings in %d runs%n", built.size(), postings, runs.size());
+    return postings;
+  }
+
+  /** Distinct terms from the stored term vector, or from the text. */
+  private BookTerms readTerms(int bookId, String contentHash) throws IOException {
+    TermVector vector = contentStore.readTermVector(bookId, analyzer.signature());
+    if (vector != null && contentHash != null) {
+      return new BookTerms(vector.terms(), contentHash);
+    }
+
+    BufferedReader content = contentStore.openContent(bookId);
+    if (content == null) {
+      throw new IllegalStateException("Book content not found");
+    }
+    // same fingerprint as IndexAPI: lines joined by '\n'
+    Set<String> terms = new HashSet<>();
+    MessageDigest fingerprint = ContentStore.newDigest();
+    try (BufferedReader reader = content) {
+      String line;
+      boolean first = true;
+      while ((line = reader.readLine()) != null) {
+        if (!first) fingerprint.update((byte) '\n');
+        first = false;
+        analyzer.analyze(line, (term, s, e) -> terms.add(term));
+        fingerprint.update(line.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return new BookTerms(terms, HexFormat.of().formatHex(fingerprint.digest()));
+  }
+
+  /** Run file: term count, then per term in order: term, posting count, delta-coded ids. */
+  private Path spill(int generation, int runNumber, Map<String, Postings> buffer) throws IOException {
+    long start = System.currentTimeMillis();
+    List<String> terms = new ArrayList<>(buffer.keySet());
+    Collections.sort(terms);
+
+    Path file = tmpDir.resolve("bulk-g" + generation + "-" + runNumber + ".run");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+      out.writeInt(terms.size());
+      for (String term : terms) {
+        Postings list = buffer.get(term);
+        out.writeUTF(term);
+        writeVarInt(out, list.size);
+        int previous = 0;
+        for (int i = 0; i < list.size; i++) {
+          writeVarInt(out, list.ids[i] - previous);
+          previous = list.ids[i];
+        }
+      }
+    }
+    System.out.printf("💾 Spilled run %d: %d terms, %d KB in %d ms%n",
+        runNumber, terms.size(), sizeOf(file) / 1024, System.currentTimeMillis() - start);
+    return file;
+  }
+
+  // ---------------------- merge ----------------------
+
+  private long merge(int generation, List<Path> runs, Set<String> collections) throws IOException {
+    PriorityQueue<RunReader> queue = new PriorityQueue<>(
+        Comparator.comparing((RunReader r) -> r.term).thenComparingInt(r -> r.index));
+    List<RunReader> readers = new ArrayList<>();
+    BucketWriter writer = new BucketWriter(generation, collections);
+    long terms = 0;
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        RunReader reader = new RunReader(runs.get(i), i);
+        readers.add(reader);
+        if (reader.next()) queue.add(reader);
+      }
+
+      while (!queue.isEmpty()) {
+        RunReader head = queue.poll();
+        String term = head.term;
+        List<Integer> postings = new ArrayList<>(head.size);
+        // readers of the same term come in run order, i.e. ascending book ids
+        RunReader reader = head;
+        while (true) {
+          for (int i = 0; i < reader.size; i++) postings.add(reader.ids[i]);
+          if (reader.next()) queue.add(reader);
+          if (queue.isEmpty() || !queue.peek().term.equals(term)) break;
+          reader = queue.poll();
+        }
+        writer.add(term, postings);
+        terms++;
+      }
+      writer.flush();
+    } finally {
+      for (RunReader reader : readers) reader.close();
+    }
+    System.out.printf("🧬 Bulk merge: %d terms into %d collections%n", terms, collections.size());
+    return terms;
+  }
+
+  /** Batches the merged terms per bucket collection; terms arrive sorted, so buckets arrive grouped. */
+  private final class BucketWriter {
+    private final int generation;
+    private final Set<String> collections;
+    private final List<Document> batch = new ArrayList<>();
+    private String collection;
+    private long batchBytes;
+
+    BucketWriter(int generation, Set<String> collections) {
+      this.generation = generation;
+      this.collections = collections;
+    }
+
+    void add(String term, List<Integer> postings) {
+      String target = IndexCollections.collectionFor(generation, term);
+      if (!target.equals(collection)) {
+        flush();
+        collection = target;
+        collections.add(target);
+      }
+      batch.add(new Document("term", term).append("postings", postings));
+      batchBytes += 2L * term.length() + 12L * postings.size();
+      if (batch.size() >= INSERT_BATCH_DOCS || batchBytes >= INSERT_BATCH_BYTES) {
+        flush();
+      }
+    }
+
+    void flush() {
+      if (batch.isEmpty()) return;
+      indexDb.getCollection(collection).insertMany(batch, new InsertManyOptions().ordered(false));
+      batch.clear();
+      batchBytes = 0;
+    }
+  }
+
+  // ---------------------- catch-up and status ----------------------
+
+  /**
+   * Start of the catch-up window. indexFinishedAt and deletedAt are set with
+   * the database clock, so the cutoff is taken from it too, not from this
+   * host. Books from the margin are caught up again; the forward index diff
+   * keeps that idempotent.
+   */
+  private Date catchUpCutoff() {
+    Date serverTime = indexDb.runCommand(new Document("hello", 1)).getDate("localTime");
+    long now = serverTime == null ? System.currentTimeMillis() : serverTime.getTime();
+    return new Date(now - CATCH_UP_MARGIN_MS);
+  }
+
+  /**
+   * Adds books that live indexing finished during the build; they keep their
+   * status. Terms the scan found for them but their current text lacks are
+   * pulled again.
+   */
+  private Set<Integer> catchUp(int generation, Date scanStartedAt) throws IOException {
+    Set<Integer> caughtUp = new HashSet<>();
+    try (MongoCursor<Document> cursor = books.find(Filters.and(
+            Filters.eq("indexStatus", "DONE"),
+            Filters.gte("indexFinishedAt", scanStartedAt)))
+        .projection(Projections.include("id", "contentHash"))
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Document doc = cursor.next();
+        Integer id = doc.getInteger("id");
+        if (id == null) continue;
+
+        Collection<String> terms = readTerms(id, doc.getString("contentHash")).terms();
+        Set<String> removed = new HashSet<>();
+        SortedSet<String> scanned = forwardIndex.get(generation, id);
+        if (scanned != null) {
+          removed.addAll(scanned);
+          removed.removeAll(terms);
+        }
+        writePostings(generation, id, terms, removed);
+        forwardIndex.put(generation, id, terms);
+        caughtUp.add(id);
+      }
+    }
+    if (!caughtUp.isEmpty()) {
+      System.out.printf("🔁 Bulk catch-up: %d books indexed during the build%n", caughtUp.size());
+    }
+    return caughtUp;
+  }
+
+  /**
+   * Pulls books deleted during the build out of the generation: live deletes
+   * skip it while it is being loaded, but the scan may have read them. Deletes
+   * handled after the generation was opened have already removed themselves.
+   */
+  private int catchUpDeletes(int generation, Date scanStartedAt) throws IOException {
+    int deleted = 0;
+    try (MongoCursor<Document> cursor = books.find(Filters.and(
+            Filters.eq("ingestStatus", "DELETED"),
+            Filters.gte("deletedAt", scanStartedAt)))
+        .projection(Projections.include("id"))
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Integer id = cursor.next().getInteger("id");
+        if (id == null) continue;
+
+        SortedSet<String> scanned = forwardIndex.get(generation, id);
+        if (scanned == null) continue; // not scanned, or already removed
+        writePostings(generation, id, List.of(), scanned);
+        forwardIndex.remove(generation, id);
+        deleted++;
+      }
+    }
+    if (deleted > 0) {
+      System.out.printf("🔁 Bulk catch-up: %d books deleted during the build%n", deleted);
+    }
+    return deleted;
+  }
+
+  /** Adds the book to the posting lists of added terms and pulls it from those of removed ones. */
+  private void writePostings(int generation, int bookId, Collection<String> added, Collection<String> removed) {
+    Map<String, List<WriteModel<Document>>> writes = new HashMap<>();
+    for (String term : added) {
+      writes.computeIfAbsent(IndexCollections.collectionFor(generation, term), k -> new ArrayList<>())
+          .add(new UpdateOneModel<>(Filters.eq("term", term), Updates.addToSet("postings", bookId),
+              new UpdateOptions().upsert(true)));
+    }
+    Map<String, List<String>> pulled = new HashMap<>();
+    for (String term : removed) {
+      String name = IndexCollections.collectionFor(generation, term);
+      writes.computeIfAbsent(name, k -> new ArrayList<>())
+          .add(new UpdateOneModel<>(Filters.eq("term", term), Updates.pull("postings", bookId)));
+      pulled.computeIfAbsent(name, k -> new ArrayList<>()).add(term);
+    }
+    writes.forEach((name, models) ->
+        indexDb.getCollection(name).bulkWrite(models, new BulkWriteOptions().ordered(false)));
+    pulled.forEach((name, terms) ->
+        indexDb.getCollection(name).deleteMany(Filters.and(Filters.in("term", terms), Filters.size("postings", 0))));
+  }
+
+  private void mark(Map<Integer, BuiltBook> built, Set<Integer> caughtUp, List<Integer> failed) {
+    Date now = new Date();
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    for (Map.Entry<Integer, BuiltBook> entry : built.entrySet()) {
+      if (caughtUp.contains(entry.getKey())) continue;
+      BuiltBook book = entry.getValue();
+      List<org.bson.conversions.Bson> updates = new ArrayList<>(List.of(
+          Updates.set("indexStatus", "DONE"),
+          Updates.set("indexedHash", book.fingerprint()),
+          Updates.set("indexFinishedAt", now),
+          Updates.unset("indexStartedAt"),
+          BookLeases.cleared()));
+      if (book.backfillHash()) updates.add(Updates.set("contentHash", book.fingerprint()));
+      // only while the book still has the text that was scanned
+      writes.add(new UpdateOneModel<>(
+          Filters.and(
+              Filters.eq("id", entry.getKey()),
+              book.backfillHash() ? Filters.exists("contentHash", false)
+                  : Filters.eq("contentHash", book.fingerprint()),
+              Filters.nin("indexStatus", NOT_MARKABLE)),
+          Updates.combine(updates)));
+
+      if (writes.size() >= MARK_BATCH) {
+        books.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        writes.clear();
+      }
+    }
+    if (!writes.isEmpty()) {
+      books.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+    if (!failed.isEmpty()) {
+      books.updateMany(
+          Filters.and(Filters.in("id", failed), Filters.nin("indexStatus", NOT_MARKABLE)),
+          Updates.combine(
+              Updates.set("indexStatus", "FAILED"),
+              Updates.set("indexError", "content not readable in bulk build")));
+    }
+  }
+
+  // ---------------------- run files ----------------------
+
+  /** Growable int list; add() returns the bytes the list grew by. */
+  private static final class Postings {
+    int[] ids = new int[2];
+    int size;
+
+    int add(int id) {
+      int grown = 0;
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        grown = size * Integer.BYTES;
+      }
+      ids[size++] = id;
+      return grown;
+    }
+  }
+
+  private static final class RunReader implements Closeable {
+    final int index;
+    private final DataInputStream in;
+    private int remaining;
+    String term;
+    int[] ids = new int[16];
+    int size;
+
+    RunReader(Path file, int index) throws IOException {
+      this.index = index;
+      this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+      this.remaining = in.readInt();
+    }
+
+    boolean next() throws IOException {
+      if (remaining == 0) return false;
+      remaining--;
+      term = in.readUTF();
+      size = readVarInt(in);
+      if (ids.length < size) ids = new int[Math.max(size, ids.length * 2)];
+      int previous = 0;
+      for (int i = 0; i < size; i++) {
+        previous += readVarInt(in);
+        ids[i] = previous;
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+  }
+
+  private static long sizeOf(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package bigdatastage3;
+
+import com.google.gson.Gson;
+
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.TextMessage;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Tells the controller when a book is through the pipeline, without polling.
+ *
+ * Subscribes to the document.indexed and document.failed topics and completes
+ * a future per book. Events that arrive before anyone waits are remembered
+ * for a while. A book that finished before the controller started is detected
+ * with one status lookup at the ingest service when a waiter registers.
+ *
+ * Before a book is ingested again, {@link #expect(int)} forgets its previous
+ * result: until the new run reports, waiters neither get the old event nor
+ * the stored status of the old run.
+ */
+public class CompletionTracker {
+
+  private static final Gson GSON = new Gson();
+  private static final int RECENT_EVENTS = 10_000;
+
+  private final String ingestApi;
+  private final HttpClient http;
+  private final Map<Integer, CompletableFuture<Map<String, Object>>> waiters = new ConcurrentHashMap<>();
+  private final List<Consumer<Map<String, Object>>> listeners = new CopyOnWriteArrayList<>();
+
+  // bookId -> last completion event, oldest first
+  private final Map<Integer, Map<String, Object>> recent = Collections.synchronizedMap(
+      new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, Object>> eldest) {
+          return size() > RECENT_EVENTS;
+        }
+      });
+
+  // bookId -> time a new run was triggered, until its event arrives
+  private final Map<Integer, Long> triggered = Collections.synchronizedMap(
+      new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+          return size() > RECENT_EVENTS;
+        }
+      });
+
+  public CompletionTracker(MessageBroker broker, String ingestApi, HttpClient http) throws JMSException {
+    this.ingestApi = ingestApi;
+    this.http = http;
+    broker.subscribeTopic(MessageBroker.TOPIC_DOC_INDEXED, message -> onEvent(message, "indexed"));
+    broker.subscribeTopic(MessageBroker.TOPIC_DOC_FAILED, message -> onEvent(message, "failed"));
+  }
+
+  /**
+   * Future completed with {book_id, status: indexed|failed, ...} once the book
+   * is done. Callers waiting for the same book share one registration, each
+   * gets its own copy, so a caller's timeout or cancel does not affect others.
+   */
+  public CompletableFuture<Map<String, Object>> await(int bookId) {
+    Map<String, Object> known = recent.get(bookId);
+    if (known != null) {
+      return CompletableFuture.completedFuture(known);
+    }
+
+    boolean[] created = { false };
+    CompletableFuture<Map<String, Object>> future = waiters.computeIfAbsent(bookId, id -> {
+      created[0] = true;
+      return new CompletableFuture<>();
+    });
+    future.whenComplete((result, error) -> waiters.remove(bookId, future));
+
+    if (created[0]) {
+      // the event may have been published before we subscribed or registered
+      Map<String, Object> raced = recent.get(bookId);
+      if (raced != null) {
+        future.complete(raced);
+      } else {
+        checkStoredStatus(bookId, future);
+      }
+    }
+    return future.copy();
+  }
+
+  /**
+   * A new run of the book is about to be triggered. Its previous event is
+   * dropped and the stored status is not consulted until the run reports.
+   */
+  public void expect(int bookId) {
+    triggered.put(bookId, System.currentTimeMillis());
+    recent.remove(bookId);
+  }
+
+  /** Receives every completion event, e.g. for server-sent events. */
+  public Runnable addListener(Consumer<Map<String, Object>> listener) {
+    listeners.add(listener);
+    return () -> listeners.remove(listener);
+  }
+
+  public int waiting() {
+    return waiters.size();
+  }
+
+  // ---------------------- internals ----------------------
+
+  private void onEvent(Message message, String status) {
+    try {
+      if (!(message instanceof TextMessage text)) return;
+      Map<?, ?> payload = GSON.fromJson(text.getText(), Map.class);
+      if (payload == null || !(payload.get("bookId") instanceof Number id)) return;
+
+      Map<String, Object> event = new LinkedHashMap<>();
+      event.put("book_id", id.intValue());
+      event.put("status", status);
+      if (payload.get("stage") != null) event.put("stage", payload.get("stage"));
+      if (payload.get("error") != null) event.put("error", payload.get("error"));
+      event.put("at", System.currentTimeMillis());
+      complete(id.intValue(), event);
+    } catch (Exception e) {
+      System.err.println("⚠ Invalid completion event: " + e.getMessage());
+    }
+  }
+
+  private void complete(int bookId, Map<String, Object> event) {
+    triggered.remove(bookId);
+    recent.put(bookId, event);
+    CompletableFuture<Map<String, Object>> future = waiters.get(bookId);
+    if (future != null) {
+      future.complete(event);
+    }
+    for (Consumer<Map<String, Object>> listener : listeners) {
+      try {
+        listener.accept(event);
+      } catch (Exception e) {
+        listeners.remove(listener); // e.g. closed SSE connection
+      }
+    }
+  }
+
+  /**
+   * One lookup for books that were finished before anyone waited for them.
+   * Skipped while a new run is pending, the stored status may still be the
+   * previous run's.
+   */
+  private void checkStoredStatus(int bookId, CompletableFuture<Map<String, Object>> future) {
+    if (triggered.containsKey(bookId)) return;
+    HttpRequest request = HttpRequest.newBuilder(URI.create(ingestApi + "/ingest/status/" + bookId))
+        .timeout(Duration.ofSeconds(10))
+        .GET()
+        .build();
+    http.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenAccept(response -> {
+      if (response.statusCode() != 200 || triggered.containsKey(bookId)) return;
+      Map<?, ?> status = GSON.fromJson(response.body(), Map.class);
+      Object index = status == null ? null : status.get("index_status");
+      Map<String, Object> event = new LinkedHashMap<>();
+      event.put("book_id", bookId);
+      if ("DONE".equals(index)) {
+        event.put("status", "indexed");
+      } else if ("ERROR".equals(index) || "PARKED".equals(index)) {
+        event.put("status", "failed");
+        event.put("stage", "index");
+      } else {
+        return; // still in progress, the event will come
+      }
+      event.put("at", System.currentTimeMillis());
+      future.complete(event);
+    }).exceptionally(e -> null);
+  }
+}
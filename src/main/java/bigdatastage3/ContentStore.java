@@ -0,0 +1,147 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Book text storage, separate from the metadata in BigData.books.
+ *
+ * Content and footer live deflate-compressed in BigData.book_contents
+ * (one document per book, _id = book id) and are only read when a book is
+ * indexed. Reading decompresses as a stream, line by line.
+ *
+ * The fingerprint of a book is the SHA-256 of its content. Ingest stores it as
+ * books.contentHash, indexing records the one it indexed as books.indexedHash;
+ * books where both match do not need to be indexed again.
+ *
+ * With INGEST_TOKENIZE=true ingest also stores the book's {@link TermVector}
+ * next to the text, tagged with the analyzer signature it was built with.
+ */
+public class ContentStore {
+
+  static final String CODEC = "deflate";
+  private static final int MAX_DOCUMENT_BYTES = 15 * 1024 * 1024; // Mongo limit is 16 MB
+
+  private final MongoCollection<Document> contents;
+  private final MongoCollection<Document> books;
+
+  public ContentStore(MongoDatabase booksDb) {
+    this.contents = booksDb.getCollection("book_contents");
+    this.books = booksDb.getCollection("books");
+  }
+
+  public void put(int bookId, String content, String footer) throws IOException {
+    put(bookId, content, footer, null, null);
+  }
+
+  /**
+   * @param vector   term vector built at ingest time, or null
+   * @param analyzer signature of the analyzer that built the vector
+   */
+  public void put(int bookId, String content, String footer, TermVector vector, String analyzer)
+      throws IOException {
+    byte[] compressedContent = deflate(content);
+    byte[] compressedFooter = deflate(footer == null ? "" : footer);
+    byte[] terms = vector == null ? new byte[0] : vector.encode();
+    if (compressedContent.length + compressedFooter.length + terms.length > MAX_DOCUMENT_BYTES) {
+      throw new IOException("Book " + bookId + " is too large to store (" + compressedContent.length + " bytes compressed)");
+    }
+
+    Document doc = new Document("_id", bookId)
+        .append("codec", CODEC)
+        .append("length", content.length())
+        .append("content", new Binary(compressedContent))
+        .append("footer", new Binary(compressedFooter))
+        .append("storedAt", new Date());
+    if (vector != null) {
+      doc.append("terms", new Binary(terms)).append("analyzer", analyzer);
+    }
+    contents.replaceOne(Filters.eq("_id", bookId), doc, new ReplaceOptions().upsert(true));
+  }
+
+  /**
+   * Term vector stored at ingest time, or null if there is none or it was
+   * built by a differently configured analyzer. Only the vector is read.
+   */
+  public TermVector readTermVector(int bookId, String analyzer) throws IOException {
+    Document doc = contents.find(Filters.eq("_id", bookId))
+        .projection(Projections.include("terms", "analyzer"))
+        .first();
+    if (doc == null || doc.get("terms") == null || !analyzer.equals(doc.getString("analyzer"))) {
+      return null;
+    }
+    return TermVector.decode(doc.get("terms", Binary.class).getData());
+  }
+
+  /**
+   * Opens the book content for streaming reads, or returns null if the book
+   * has no content. Books ingested before the split still carry their text
+   * inline in BigData.books and are read from there.
+   */
+  public BufferedReader openContent(int bookId) {
+    Document doc = contents.find(Filters.eq("_id", bookId))
+        .projection(Projections.include("codec", "content"))
+        .first();
+    if (doc != null) {
+      byte[] data = doc.get("content", Binary.class).getData();
+      InputStream in = new InflaterInputStream(new ByteArrayInputStream(data), new Inflater(), 64 * 1024);
+      return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    Document legacy = books.find(Filters.eq("id", bookId)).projection(Projections.include("content")).first();
+    String content = legacy == null ? null : legacy.getString("content");
+    return content == null ? null : new BufferedReader(new StringReader(content));
+  }
+
+  /** Fingerprint of the complete content as stored by ingest. */
+  public static String fingerprint(String content) {
+    MessageDigest digest = newDigest();
+    digest.update(content.getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * Digest for computing the same fingerprint while streaming: feed the lines
+   * as returned by {@link #openContent} with '\n' between them.
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void delete(int bookId) {
+    contents.deleteOne(Filters.eq("_id", bookId));
+  }
+
+  private static byte[] deflate(String text) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, text.length() / 3));
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (Writer out = new OutputStreamWriter(new DeflaterOutputStream(bytes, deflater, 64 * 1024),
+        StandardCharsets.UTF_8)) {
+      out.write(text);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+}
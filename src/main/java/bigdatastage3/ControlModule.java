@@ -3,10 +3,8 @@ package bigdatastage3;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -17,10 +15,13 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Orchestriert: Ingestion -> (warten) -> Indexing.
+ * Orchestriert: Ingestion -> (auf document.indexed warten) -> Search-Refresh.
  * Hält Buch über bereits verarbeitete book_ids in indexed_books.txt.
  */
 public class ControlModule {
@@ -36,12 +37,15 @@ public class ControlModule {
 
   private final Path processedListFile; // z.B. control/indexed_books.txt
   private final Set<Integer> processedCache = ConcurrentHashMap.newKeySet();
+  private final CompletionTracker completions;
 
-  public ControlModule(String ingestionBase, String indexingBase, String searchBase, Path processedListFile) {
+  public ControlModule(String ingestionBase, String indexingBase, String searchBase, Path processedListFile,
+      CompletionTracker completions) {
     this.ingestionBase = stripTrailingSlash(ingestionBase);
     this.indexingBase = stripTrailingSlash(indexingBase);
     this.searchBase = searchBase == null ? null : stripTrailingSlash(searchBase);
     this.processedListFile = processedListFile;
+    this.completions = completions;
     try {
       loadProcessedCache();
     } catch (IOException ignored) {
@@ -86,29 +90,29 @@ public class ControlModule {
       return out;
     }
 
-    // 1) Ingestion triggern
+    // 1) auf Abschluss warten, bevor getriggert wird, damit kein Event verloren geht
+    //    (ohne das Ergebnis eines frueheren Laufs)
+    completions.expect(bookId);
+    CompletableFuture<Map<String, Object>> done = completions.await(bookId);
+
+    // 2) Ingestion triggern, das Indexing folgt ueber JMS
     HttpResponse<String> ingestResp = sendPost(ingestionBase + "/ingest/" + bookId, null, 30);
     out.put("ingest_trigger_code", ingestResp.statusCode());
 
-    // 2) Ingestion-Status pollen bis "available"
-    boolean available = poll(() -> isIngestionAvailable(bookId),
-        Duration.ofSeconds(envInt("CONTROL_INGEST_MAX_WAIT_SEC", 120)),
-        Duration.ofMillis(envInt("CONTROL_INGEST_POLL_MS", 1500)));
-    if (!available) {
+    // 3) auf document.indexed / document.failed warten
+    Map<String, Object> event;
+    try {
+      event = done.get(envInt("CONTROL_INGEST_MAX_WAIT_SEC", 120), TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
       out.put("status", "failed");
-      out.put("stage", "ingestion_wait_timeout");
+      out.put("stage", "completion_wait_timeout");
       return out;
     }
-
-    // 3) Indexing triggern
-    HttpResponse<String> indexResp = sendPost(indexingBase + "/index/update/" + bookId, null, 60);
-    out.put("index_trigger_code", indexResp.statusCode());
-
-    // (optional) kurz auf Index-Fortschritt schauen, wenn /index/status existiert
-    try {
-      HttpResponse<String> st = sendGet(indexingBase + "/index/status", 10);
-      out.put("index_status_snapshot", safeJsonToMap(st.body()));
-    } catch (Exception ignored) {
+    if ("failed".equals(event.get("status"))) {
+      out.put("status", "failed");
+      out.put("stage", event.getOrDefault("stage", "unknown"));
+      out.put("error", event.get("error"));
+      return out;
     }
 
     // 4) (optional) Search-Caches refreshen, falls ihr so einen Endpoint habt
@@ -173,46 +177,6 @@ public class ControlModule {
 
   // ---------- helpers ----------
 
-  private boolean isIngestionAvailable(int bookId) throws Exception {
-    HttpResponse<String> resp = sendGet(ingestionBase + "/ingest/status/" + bookId, 8);
-    if (resp.statusCode() != 200 || resp.body() == null)
-      return false;
-    Map<String, Object> m = safeJsonToMap(resp.body());
-    Object s = m.get("status");
-    if (s == null)
-      s = m.get("state");
-    String state = s == null ? "" : s.toString().toLowerCase(Locale.ROOT);
-    // akzeptiere "available", "ready", "downloaded"
-    return state.contains("avail") || state.contains("ready") || state.contains("download");
-  }
-
-  private Map<String, Object> safeJsonToMap(String json) {
-    try {
-      Type t = new TypeToken<Map<String, Object>>() {
-      }.getType();
-      Map<String, Object> m = gson.fromJson(json, t);
-      return m == null ? Map.of() : m;
-    } catch (Exception e) {
-      return Map.of("raw", truncate(json, 500));
-    }
-  }
-
-  private static String truncate(String s, int max) {
-    if (s == null)
-      return null;
-    return s.length() <= max ? s : s.substring(0, max) + "...";
-  }
-
-  private boolean poll(CheckedSupplier<Boolean> cond, Duration maxWait, Duration interval) throws Exception {
-    long deadline = System.nanoTime() + maxWait.toNanos();
-    while (System.nanoTime() < deadline) {
-      if (cond.get())
-        return true;
-      Thread.sleep(interval.toMillis());
-    }
-    return false;
-  }
-
   private HttpResponse<String> sendPost(String url, String body, int timeoutSec)
       throws IOException, InterruptedException {
     HttpRequest.Builder b = HttpRequest.newBuilder()
@@ -231,11 +195,6 @@ public class ControlModule {
     return http.send(req, HttpResponse.BodyHandlers.ofString());
   }
 
-  @FunctionalInterface
-  private interface CheckedSupplier<T> {
-    T get() throws Exception;
-  }
-
   private static int envInt(String key, int def) {
     try {
       return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)));
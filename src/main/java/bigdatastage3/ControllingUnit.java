@@ -3,13 +3,23 @@ package bigdatastage3;
 import com.google.gson.Gson;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+import io.javalin.http.sse.SseHandler;
 
 import java.io.*;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import jakarta.jms.JMSException;
 
@@ -18,22 +28,45 @@ public class ControllingUnit {
   // ---------- configuration / state ----------
   private static final Gson gson = new Gson();
   private static Path CONTROL_DIR;
-  private static Path PROCESSED_FILE;
+  private static ProcessedSet processed;
 
   private static String INGEST_API;
   private static String SEARCH_API;
 
+  private static final int DEFAULT_BATCH_PARALLELISM = envInt("CONTROLLER_BATCH_PARALLELISM", 8);
+  private static BatchJobs batchJobs;
+  private static CompletionTracker completions;
+  private static final int MAX_AWAIT_SEC = envInt("CONTROLLER_AWAIT_MAX_SEC", 300);
+  private static final int MAX_DLQ_MESSAGES = 1_000;
+
   private static final HttpClient httpClient = HttpClient.newHttpClient();
 
+  // Search proxy: pooled non-blocking client, identical concurrent queries share one call
+  private static final HttpClient searchClient = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(5))
+      .executor(Executors.newFixedThreadPool(envInt("CONTROLLER_SEARCH_THREADS", 8)))
+      .build();
+  private static final SingleFlight<String, UpstreamResponse> searchFlights = new SingleFlight<>();
+  private static final RetryBudget searchRetries = new RetryBudget(0.1, 5);
+  private static final int SEARCH_MAX_ATTEMPTS = 3;
+
+  private record UpstreamResponse(int status, String contentType, byte[] body) {
+  }
+
   public static void main(String[] args) throws IOException {
 
     INGEST_API = System.getenv("INGEST_API");
     SEARCH_API = System.getenv("SEARCH_API");
     CONTROL_DIR = Paths.get("control");
     int PORT = Integer.parseInt(System.getenv("CONTROLLER_PORT"));
-    PROCESSED_FILE = CONTROL_DIR.resolve("processed_books.txt");
-
-    ensureControlDir();
+    processed = new ProcessedSet(CONTROL_DIR);
+    batchJobs = new BatchJobs(CONTROL_DIR.resolve("jobs"), envInt("CONTROLLER_BATCH_MAX_PARALLELISM", 32),
+        ControllingUnit::ingestForBatch);
+    try {
+      completions = new CompletionTracker(new MessageBroker(), INGEST_API, httpClient);
+    } catch (JMSException e) {
+      throw new IOException("Cannot subscribe to completion events", e);
+    }
 
     Javalin app = Javalin.create().start(PORT);
 
@@ -48,8 +81,16 @@ public class ControllingUnit {
     app.get("/status", ControllingUnit::status);
     app.post("/control/run/{book_id}", ControllingUnit::processBook);
     app.post("/control/run-batch", ControllingUnit::processBooksBatch);
+    app.get("/control/jobs", ctx -> ctx.json(batchJobs.list()));
+    app.get("/control/jobs/{job_id}", ControllingUnit::batchJobStatus);
     app.post("/control/reindex", ControllingUnit::reindexAll);
+    app.post("/control/reindex/pause", ctx -> reindexControl(ctx, "pause"));
+    app.post("/control/reindex/resume", ctx -> reindexControl(ctx, "resume"));
+    app.get("/control/dlq", ControllingUnit::deadLetters);
+    app.post("/control/dlq/replay", ControllingUnit::replayDeadLetters);
     app.get("/control/processed", ControllingUnit::processedBooks);
+    app.get("/control/await/{book_id}", ControllingUnit::awaitBook);
+    app.get("/control/events", ControllingUnit::streamEvents);
     app.get("/search", ControllingUnit::searchBooks);
 
     System.out.println("🚀 ControllingUnit API running on port: " + PORT);
@@ -60,7 +101,11 @@ public class ControllingUnit {
   private static void status(Context ctx) {
     Map<String, Object> status = new LinkedHashMap<>();
     status.put("service", "controller");
-    status.put("processed_file", PROCESSED_FILE.toString());
+    status.put("control_dir", CONTROL_DIR.toString());
+    status.put("processed_books", processed.size());
+    status.put("awaiting_books", completions.waiting());
+    status.put("search_in_flight", searchFlights.inFlight());
+    status.put("search_retry_budget", searchRetries.stats());
     ctx.result(gson.toJson(status));
   }
 
@@ -80,7 +125,8 @@ public class ControllingUnit {
         return;
       }
 
-      // Trigger ingest
+      // Trigger ingest; a following /control/await waits for this run
+      completions.expect(bookId);
       String ingestResult = callApiWithRetry(INGEST_API + "/ingest/" + bookId, 3, 500);
 
       markProcessed(bookId);
@@ -99,86 +145,266 @@ public class ControllingUnit {
   }
 
   /**
-   * Start ingestion for a batch of books.
+   * Start ingestion for a batch of books as a background job.
+   * Body: {"book_ids": [...], "parallelism": n}; returns the job id right away.
    */
   private static void processBooksBatch(Context ctx) {
-    Map<String, Object> body = ctx.bodyAsClass(Map.class);
-    List<Integer> bookIds = ((List<?>) body.getOrDefault("book_ids", List.of()))
-        .stream()
-        .map(Object::toString)
-        .map(Integer::parseInt)
-        .collect(Collectors.toList());
-
-    List<Map<String, Object>> results = new ArrayList<>();
-    for (int id : bookIds) {
-      try {
-        String ingestResult = callApiWithRetry(INGEST_API + "/ingest/" + id, 3, 500);
-        markProcessed(id);
-        results.add(Map.of(
-            "book_id", id,
-            "ingest", ingestResult,
-            "status", "success"));
-      } catch (Exception e) {
-        results.add(Map.of(
-            "book_id", id,
-            "status", "error",
-            "message", e.getMessage()));
-      }
+    List<Integer> bookIds;
+    int parallelism;
+    try {
+      Map<String, Object> body = ctx.bodyAsClass(Map.class);
+      bookIds = ((List<?>) body.getOrDefault("book_ids", List.of()))
+          .stream()
+          .map(id -> id instanceof Number n ? n.intValue() : Integer.parseInt(id.toString()))
+          .collect(Collectors.toList());
+      Object p = body.get("parallelism");
+      parallelism = p instanceof Number n ? n.intValue() : DEFAULT_BATCH_PARALLELISM;
+    } catch (Exception e) {
+      ctx.status(400).json(Map.of("error", "Invalid body: " + e.getMessage()));
+      return;
+    }
+    if (bookIds.isEmpty()) {
+      ctx.status(400).json(Map.of("error", "'book_ids' must not be empty"));
+      return;
+    }
+
+    try {
+      ctx.status(202).json(batchJobs.submit(bookIds, parallelism));
+    } catch (IOException e) {
+      ctx.status(500).json(Map.of("error", e.getMessage()));
+    }
+  }
+
+  private static void batchJobStatus(Context ctx) {
+    boolean details = !"false".equals(ctx.queryParam("details"));
+    Map<String, Object> job = batchJobs.get(ctx.pathParam("job_id"), details);
+    if (job == null) {
+      ctx.status(404).json(Map.of("error", "Unknown job"));
+      return;
     }
+    ctx.json(job);
+  }
 
-    ctx.json(results);
+  /** One book of a batch job. */
+  private static String ingestForBatch(int bookId) throws Exception {
+    if (alreadyProcessed(bookId)) {
+      return "already_processed";
+    }
+    completions.expect(bookId);
+    callApiWithRetry(INGEST_API + "/ingest/" + bookId + "?lane=bulk", 3, 500);
+    markProcessed(bookId);
+    return "success";
   }
 
   /**
    * Send a reindex.request event to the broker.
+   * ?mode=incremental only reindexes books whose content changed,
+   * ?mode=bulk rebuilds the whole index offline on one indexer.
    */
   private static void reindexAll(Context ctx) {
+    String mode = ctx.queryParam("mode") == null ? "full" : ctx.queryParam("mode");
+    if (!mode.equals("full") && !mode.equals("incremental") && !mode.equals("bulk")) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "mode must be 'full', 'incremental' or 'bulk'")));
+      return;
+    }
     try (MessageBroker broker = new MessageBroker()) {
-      broker.sendReindexRequest();
-      ctx.result(gson.toJson(Map.of("status", "reindex request sent")));
+      broker.sendReindexRequest(mode);
+      ctx.result(gson.toJson(Map.of("status", "reindex request sent", "mode", mode)));
     } catch (JMSException | IOException e) {
       ctx.status(500).result(gson.toJson(Map.of("error", e.getMessage())));
     }
   }
 
-  private static void processedBooks(Context ctx) {
+  /**
+   * Long poll until the book is indexed or failed, at most ?timeout seconds
+   * (default 30). Returns 202 with status "pending" when the time is up.
+   */
+  private static void awaitBook(Context ctx) {
+    int bookId;
+    int timeout;
     try {
-      if (Files.exists(PROCESSED_FILE)) {
-        List<String> lines = Files.readAllLines(PROCESSED_FILE, StandardCharsets.UTF_8);
-        ctx.json(lines);
-      } else {
-        ctx.json(Collections.emptyList());
+      bookId = Integer.parseInt(ctx.pathParam("book_id"));
+      String t = ctx.queryParam("timeout");
+      timeout = Math.max(0, Math.min(MAX_AWAIT_SEC, t == null ? 30 : Integer.parseInt(t)));
+    } catch (NumberFormatException e) {
+      ctx.status(400).json(Map.of("error", "Book ID and timeout must be numbers"));
+      return;
+    }
+
+    ctx.future(() -> completions.await(bookId)
+        .orTimeout(timeout, TimeUnit.SECONDS)
+        .thenAccept(event -> ctx.json(event))
+        .exceptionally(e -> {
+          Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          if (cause instanceof TimeoutException) {
+            ctx.status(202).json(Map.of("book_id", bookId, "status", "pending"));
+          } else {
+            ctx.status(500).json(Map.of("error", String.valueOf(cause.getMessage())));
+          }
+          return null;
+        }));
+  }
+
+  /**
+   * Server-sent "completion" events for all books, or only for ?ids=1,2,3.
+   */
+  private static void streamEvents(Context ctx) throws Exception {
+    Set<Integer> ids = new HashSet<>();
+    String filter = ctx.queryParam("ids");
+    if (filter != null) {
+      try {
+        for (String id : filter.split(",")) {
+          if (!id.isBlank()) ids.add(Integer.parseInt(id.trim()));
+        }
+      } catch (NumberFormatException e) {
+        ctx.status(400).json(Map.of("error", "ids must be a comma-separated list of book ids"));
+        return;
       }
-    } catch (IOException e) {
-      ctx.status(500).json(Map.of("error", e.getMessage()));
     }
+    new SseHandler(client -> streamEvents(client, ids)).handle(ctx);
   }
 
-  private static void searchBooks(Context ctx) {
-    String query = ctx.queryParam("q");
-    String author = ctx.queryParam("author");
-    String language = ctx.queryParam("language");
-    String year = ctx.queryParam("year");
+  private static void streamEvents(SseClient client, Set<Integer> ids) {
+    client.keepAlive();
+    Runnable unsubscribe = completions.addListener(event -> {
+      if (!ids.isEmpty() && !ids.contains((Integer) event.get("book_id"))) return;
+      if (client.terminated()) throw new IllegalStateException("client gone");
+      client.sendEvent("completion", gson.toJson(event));
+    });
+    client.onClose(unsubscribe);
+  }
 
-    if (query == null || query.trim().isEmpty()) {
-      ctx.status(400).json(Map.of("error", "Query parameter 'q' is required."));
+  /** Pause or resume the running reindex on all indexers; started books finish. */
+  private static void reindexControl(Context ctx, String action) {
+    try (MessageBroker broker = new MessageBroker()) {
+      broker.sendReindexControl(action);
+      ctx.result(gson.toJson(Map.of("status", "reindex " + action + " sent")));
+    } catch (JMSException | IOException e) {
+      ctx.status(500).result(gson.toJson(Map.of("error", e.getMessage())));
+    }
+  }
+
+  /** Dead letters of the indexing queue, oldest first, at most ?limit (default 100). */
+  private static void deadLetters(Context ctx) {
+    int limit;
+    try {
+      String l = ctx.queryParam("limit");
+      limit = Math.max(1, Math.min(MAX_DLQ_MESSAGES, l == null ? 100 : Integer.parseInt(l)));
+    } catch (NumberFormatException e) {
+      ctx.status(400).json(Map.of("error", "limit must be a number"));
       return;
     }
+    try (MessageBroker broker = new MessageBroker()) {
+      List<Map<String, Object>> letters = broker.browseDeadLetters(MessageBroker.QUEUE_DOC_INGESTED, limit);
+      Map<String, Object> response = new LinkedHashMap<>();
+      response.put("queue", MessageBroker.QUEUE_DOC_INGESTED + ".DLQ");
+      response.put("count", letters.size());
+      response.put("messages", letters);
+      ctx.result(gson.toJson(response));
+    } catch (JMSException | IOException e) {
+      ctx.status(500).result(gson.toJson(Map.of("error", String.valueOf(e.getMessage()))));
+    }
+  }
 
+  /**
+   * Sends dead letters back to the indexing queue, at most ?limit (default
+   * 1000) per call, optionally only those of {"book_ids": [...]}. Parked
+   * books are indexed again with fresh attempts.
+   */
+  private static void replayDeadLetters(Context ctx) {
+    Set<Integer> bookIds = new HashSet<>();
+    int limit;
     try {
-      String url = SEARCH_API + "/search?q=" + query;
-      if (author != null)
-        url += "&author=" + author;
-      if (language != null)
-        url += "&language=" + language;
-      if (year != null)
-        url += "&year=" + year;
-
-      String response = callApiWithRetry(url, 3, 500);
-      ctx.result(response);
+      String l = ctx.queryParam("limit");
+      limit = Math.max(1, Math.min(MAX_DLQ_MESSAGES, l == null ? MAX_DLQ_MESSAGES : Integer.parseInt(l)));
+      if (!ctx.body().isBlank()) {
+        Map<String, Object> body = ctx.bodyAsClass(Map.class);
+        for (Object id : (List<?>) body.getOrDefault("book_ids", List.of())) {
+          bookIds.add(id instanceof Number n ? n.intValue() : Integer.parseInt(id.toString()));
+        }
+      }
     } catch (Exception e) {
-      ctx.status(500).json(Map.of("error", "Search failed: " + e));
+      ctx.status(400).json(Map.of("error", "Invalid body: " + e.getMessage()));
+      return;
+    }
+    if (bookIds.size() > MAX_DLQ_MESSAGES) {
+      ctx.status(400).json(Map.of("error", "At most " + MAX_DLQ_MESSAGES + " book_ids per replay"));
+      return;
+    }
+
+    try (MessageBroker broker = new MessageBroker()) {
+      int replayed = broker.replayDeadLetters(MessageBroker.QUEUE_DOC_INGESTED, bookIds, limit);
+      ctx.result(gson.toJson(Map.of("replayed", replayed)));
+    } catch (JMSException | IOException e) {
+      ctx.status(500).result(gson.toJson(Map.of("error", String.valueOf(e.getMessage()))));
+    }
+  }
+
+  private static void processedBooks(Context ctx) {
+    // ids as strings, like the lines of the old processed_books.txt
+    ctx.json(processed.toList().stream().map(String::valueOf).collect(Collectors.toList()));
+  }
+
+  /**
+   * Forwards the query to the search tier. All query parameters are passed
+   * on, encoded and sorted; the resulting query string is also the key under
+   * which identical concurrent searches share one upstream call.
+   */
+  private static void searchBooks(Context ctx) {
+    String query = ctx.queryParam("q");
+    if (query == null || query.trim().isEmpty()) {
+      ctx.status(400).json(Map.of("error", "Query parameter 'q' is required."));
+      return;
     }
+
+    String queryString = ctx.queryParamMap().entrySet().stream()
+        .sorted(Map.Entry.comparingByKey())
+        .flatMap(e -> e.getValue().stream().map(v -> encode(e.getKey()) + "=" + encode(v)))
+        .collect(Collectors.joining("&"));
+    URI uri = URI.create(SEARCH_API + "/search?" + queryString);
+
+    ctx.future(() -> searchFlights.run(queryString, () -> forwardSearch(uri, 1))
+        .thenAccept(response -> {
+          ctx.status(response.status());
+          if (response.contentType() != null) ctx.contentType(response.contentType());
+          ctx.result(response.body());
+        })
+        .exceptionally(e -> {
+          Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          ctx.status(502).json(Map.of("error", "Search failed: " + cause));
+          return null;
+        }));
+  }
+
+  /**
+   * Sends the search upstream without blocking. Connection errors and 502-504
+   * are retried with a short backoff while the retry budget allows it.
+   */
+  private static CompletableFuture<UpstreamResponse> forwardSearch(URI uri, int attempt) {
+    if (attempt == 1) searchRetries.onRequest();
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        .timeout(Duration.ofSeconds(30))
+        .GET()
+        .build();
+
+    return searchClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+        .handle((response, error) -> {
+          boolean retryable = error != null || (response.statusCode() >= 502 && response.statusCode() <= 504);
+          if (retryable && attempt < SEARCH_MAX_ATTEMPTS && searchRetries.tryRetry()) {
+            Executor later = CompletableFuture.delayedExecutor(100L * attempt, TimeUnit.MILLISECONDS);
+            return CompletableFuture.runAsync(() -> { }, later).thenCompose(x -> forwardSearch(uri, attempt + 1));
+          }
+          if (error != null) {
+            return CompletableFuture.<UpstreamResponse>failedFuture(error);
+          }
+          return CompletableFuture.completedFuture(new UpstreamResponse(response.statusCode(),
+              response.headers().firstValue("Content-Type").orElse(null), response.body()));
+        })
+        .thenCompose(f -> f);
+  }
+
+  private static String encode(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8);
   }
 
   // ---------- helpers ----------
@@ -207,31 +433,19 @@ public class ControllingUnit {
     }
   }
 
-  private static void ensureControlDir() throws IOException {
-    if (!Files.exists(CONTROL_DIR))
-      Files.createDirectories(CONTROL_DIR);
-    if (!Files.exists(PROCESSED_FILE))
-      Files.createFile(PROCESSED_FILE);
+  private static int envInt(String key, int def) {
+    try {
+      return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)));
+    } catch (Exception e) {
+      return def;
+    }
   }
 
   private static void markProcessed(int bookId) throws IOException {
-    try (BufferedWriter bw = Files.newBufferedWriter(
-        PROCESSED_FILE, StandardCharsets.UTF_8,
-        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-      bw.write(String.valueOf(bookId));
-      bw.newLine();
-    }
+    processed.add(bookId);
   }
 
   private static boolean alreadyProcessed(int bookId) {
-    try {
-      if (!Files.exists(PROCESSED_FILE))
-        return false;
-      return Files.readAllLines(PROCESSED_FILE, StandardCharsets.UTF_8)
-          .stream()
-          .anyMatch(line -> line.trim().equals(String.valueOf(bookId)));
-    } catch (IOException e) {
-      return false;
-    }
+    return processed.contains(bookId);
   }
 }
@@ -0,0 +1,258 @@
+package bigdatastage3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Local on-disk cache of raw Gutenberg downloads for IngestAPI.
+ *
+ * Files are named {bookId}-{sha256 prefix}.txt, so an entry is identified by
+ * book id and content hash. The cache is size-capped and evicts the least
+ * recently used files; the access time is kept in the file modification time
+ * so the LRU order survives restarts. Several ingest replicas may share the
+ * directory: files are written to a temp file first and moved into place.
+ *
+ * An optional read-only offline directory with pre-fetched books
+ * ({id}.txt or pg{id}.txt) is consulted as well; with INGEST_OFFLINE=true
+ * the network is never used, which makes benchmarks reproducible.
+ */
+public class DownloadCache {
+
+  private final Path dir;
+  private final long maxBytes;
+  private final Path offlineDir;
+  private final boolean offline;
+
+  // access-ordered: iteration starts with the least recently used entry
+  private final LinkedHashMap<Integer, Path> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  public DownloadCache(Path dir, long maxBytes, Path offlineDir, boolean offline) throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.offlineDir = offlineDir;
+    this.offline = offline;
+    if (isEnabled()) {
+      Files.createDirectories(dir);
+      loadEntries();
+    }
+  }
+
+  public static DownloadCache fromEnv() throws IOException {
+    Map<String, String> env = System.getenv();
+    long maxMb = Long.parseLong(env.getOrDefault("INGEST_CACHE_MAX_MB", "2048"));
+    String offlineDir = env.getOrDefault("INGEST_OFFLINE_DIR", "");
+    return new DownloadCache(
+        Paths.get(env.getOrDefault("INGEST_CACHE_DIR", "cache")),
+        maxMb * 1024 * 1024,
+        offlineDir.isBlank() ? null : Paths.get(offlineDir),
+        Boolean.parseBoolean(env.getOrDefault("INGEST_OFFLINE", "false")));
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  public boolean isOffline() {
+    return offline;
+  }
+
+  /** Cached or pre-fetched file for the book, or null if it has to be downloaded. */
+  public Path lookup(int bookId) throws IOException {
+    if (isEnabled()) {
+      Path cached;
+      synchronized (this) {
+        cached = entries.get(bookId);
+      }
+      if (cached == null) {
+        cached = findOnDisk(bookId); // maybe written by another replica
+      }
+      if (cached != null && Files.exists(cached)) {
+        Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        synchronized (this) {
+          if (!entries.containsKey(bookId)) {
+            entries.put(bookId, cached);
+            totalBytes += Files.size(cached);
+          }
+        }
+        return cached;
+      }
+      if (cached != null) {
+        forget(bookId);
+      }
+    }
+
+    if (offlineDir != null) {
+      for (String name : List.of(bookId + ".txt", "pg" + bookId + ".txt")) {
+        Path file = offlineDir.resolve(name);
+        if (Files.isRegularFile(file)) return file;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Copies the raw download into the cache while hashing it and returns the
+   * cached file. The stream is consumed and closed.
+   */
+  public Path store(int bookId, InputStream in) throws IOException {
+    Path tmp = Files.createTempFile(dir, bookId + "-", ".part");
+    MessageDigest sha256 = sha256();
+    try (InputStream digesting = new DigestInputStream(in, sha256);
+         OutputStream out = Files.newOutputStream(tmp)) {
+      digesting.transferTo(out);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+
+    String hash = HexFormat.of().formatHex(sha256.digest()).substring(0, 16);
+    Path target = dir.resolve(bookId + "-" + hash + ".txt");
+    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    synchronized (this) {
+      Path previous = entries.put(bookId, target);
+      if (previous != null && !previous.equals(target)) {
+        totalBytes -= sizeOrZero(previous);
+        Files.deleteIfExists(previous);
+      }
+      if (previous == null || !previous.equals(target)) {
+        totalBytes += Files.size(target);
+      }
+      evict();
+    }
+    return target;
+  }
+
+  /** Opens a cached file through a read-only memory mapping. */
+  public static InputStream openMapped(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ByteBufferInputStream(buffer);
+    }
+  }
+
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", isEnabled());
+    stats.put("offline", offline);
+    stats.put("entries", entries.size());
+    stats.put("bytes", totalBytes);
+    stats.put("max_bytes", maxBytes);
+    return stats;
+  }
+
+  // ---------------------- helpers ----------------------
+
+  private void loadEntries() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (Stream<Path> list = Files.list(dir)) {
+      list.filter(p -> bookIdOf(p) != null).forEach(files::add);
+    }
+    files.sort(Comparator.comparingLong(DownloadCache::lastModified));
+    for (Path file : files) {
+      Path previous = entries.put(bookIdOf(file), file);
+      if (previous != null) {
+        totalBytes -= sizeOrZero(previous); // older version of the same book
+        Files.deleteIfExists(previous);
+      }
+      totalBytes += sizeOrZero(file);
+    }
+    evict();
+    System.out.printf("💾 Download cache: %d books, %d MB in %s%n", entries.size(), totalBytes >> 20, dir);
+  }
+
+  private void evict() throws IOException {
+    Iterator<Map.Entry<Integer, Path>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+      Path eldest = it.next().getValue();
+      it.remove();
+      totalBytes -= sizeOrZero(eldest);
+      Files.deleteIfExists(eldest);
+    }
+  }
+
+  private synchronized void forget(int bookId) {
+    entries.remove(bookId);
+  }
+
+  private Path findOnDisk(int bookId) throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, bookId + "-*.txt")) {
+      for (Path file : stream) return file;
+    }
+    return null;
+  }
+
+  private static Integer bookIdOf(Path file) {
+    String name = file.getFileName().toString();
+    int dash = name.indexOf('-');
+    if (dash <= 0 || !name.endsWith(".txt")) return null;
+    try {
+      return Integer.parseInt(name.substring(0, dash));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static long lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static long sizeOrZero(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** InputStream view of a (memory-mapped) ByteBuffer. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) return -1;
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package bigdatastage3;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.IMap;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per upstream host, shared by all ingest replicas.
+ *
+ * The buckets live in a Hazelcast IMap. Taking a token runs as an entry
+ * processor on the partition owner, so refill and take are atomic across the
+ * cluster and the rate is a global one, not one per replica. Without a
+ * cluster (INGEST_RATE_LIMIT_SHARED=false or Hazelcast failed to start) every
+ * replica limits itself with the same logic.
+ *
+ * Configuration (environment):
+ * - INGEST_RATE_PER_SEC: sustained downloads per second and host, 0 disables the limiter
+ * - INGEST_RATE_BURST: bucket size
+ */
+public class DownloadRateLimiter {
+
+  static final String MAP_NAME = "ingest-rate-limits";
+  private static final long MAX_SLEEP_MS = 1_000;
+
+  private final double ratePerSec;
+  private final int burst;
+  private final IMap<String, Bucket> shared;
+  private final ConcurrentMap<String, Bucket> local = new ConcurrentHashMap<>();
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+  private final AtomicLong waitedMs = new AtomicLong();
+  private final AtomicLong clusterErrors = new AtomicLong();
+
+  public DownloadRateLimiter(double ratePerSec, int burst, HazelcastInstance hazelcast) {
+    this.ratePerSec = ratePerSec;
+    this.burst = Math.max(1, burst);
+    this.shared = hazelcast == null ? null : hazelcast.getMap(MAP_NAME);
+  }
+
+  public static DownloadRateLimiter fromEnv() {
+    Map<String, String> env = System.getenv();
+    double rate = Double.parseDouble(env.getOrDefault("INGEST_RATE_PER_SEC", "5"));
+    int burst = Integer.parseInt(env.getOrDefault("INGEST_RATE_BURST", "10"));
+
+    HazelcastInstance hazelcast = null;
+    if (rate > 0 && Boolean.parseBoolean(env.getOrDefault("INGEST_RATE_LIMIT_SHARED", "true"))) {
+      try {
+        hazelcast = HazelcastConfig.getIngestInstance();
+      } catch (Exception e) {
+        System.err.println("⚠ Hazelcast not available, rate limiting per replica: " + e.getMessage());
+      }
+    }
+    System.out.printf("🚦 Download rate limit: %.1f/s per host, burst %d (%s)%n",
+        rate, burst, hazelcast == null ? "local" : "cluster-wide");
+    return new DownloadRateLimiter(rate, burst, hazelcast);
+  }
+
+  /** Blocks until a download against the host is allowed. */
+  public void acquire(String host) throws InterruptedException {
+    if (ratePerSec <= 0) return;
+
+    long start = System.currentTimeMillis();
+    boolean waited = false;
+    long wait;
+    while ((wait = tryTake(host)) > 0) {
+      waited = true;
+      Thread.sleep(Math.min(wait, MAX_SLEEP_MS));
+    }
+
+    acquired.incrementAndGet();
+    if (waited) {
+      throttled.incrementAndGet();
+      waitedMs.addAndGet(System.currentTimeMillis() - start);
+    }
+  }
+
+  /** @return 0 if a token was taken, otherwise the ms until the next one */
+  private long tryTake(String host) {
+    if (shared != null) {
+      try {
+        return shared.executeOnKey(host, new TakeToken(ratePerSec, burst));
+      } catch (RuntimeException e) {
+        // cluster trouble must not stop ingestion, limit locally meanwhile
+        clusterErrors.incrementAndGet();
+      }
+    }
+    long[] wait = new long[1];
+    local.compute(host, (k, bucket) -> {
+      Bucket b = bucket == null ? new Bucket(burst, System.currentTimeMillis()) : bucket;
+      wait[0] = b.take(ratePerSec, burst, System.currentTimeMillis());
+      return b;
+    });
+    return wait[0];
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("mode", ratePerSec <= 0 ? "disabled" : shared == null ? "local" : "cluster");
+    stats.put("rate_per_sec", ratePerSec);
+    stats.put("burst", burst);
+    stats.put("acquired", acquired.get());
+    stats.put("throttled", throttled.get());
+    stats.put("waited_ms", waitedMs.get());
+    stats.put("cluster_errors", clusterErrors.get());
+    return stats;
+  }
+
+  // ---------------------- bucket ----------------------
+
+  static final class Bucket implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    double tokens;
+    long updatedAt;
+
+    Bucket(double tokens, long now) {
+      this.tokens = tokens;
+      this.updatedAt = now;
+    }
+
+    long take(double ratePerSec, int burst, long now) {
+      tokens = Math.min(burst, tokens + Math.max(0, now - updatedAt) * ratePerSec / 1000.0);
+      updatedAt = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - tokens) * 1000.0 / ratePerSec));
+    }
+  }
+
+  /** Refill and take in one step on the member owning the host's entry. */
+  static final class TakeToken implements EntryProcessor<String, Bucket, Long> {
+    private static final long serialVersionUID = 1L;
+
+    private final double ratePerSec;
+    private final int burst;
+
+    TakeToken(double ratePerSec, int burst) {
+      this.ratePerSec = ratePerSec;
+      this.burst = burst;
+    }
+
+    @Override
+    public Long process(Map.Entry<String, Bucket> entry) {
+      long now = System.currentTimeMillis();
+      Bucket bucket = entry.getValue() == null ? new Bucket(burst, now) : entry.getValue();
+      long wait = bucket.take(ratePerSec, burst, now);
+      entry.setValue(bucket); // write back, the entry holds a deserialized copy
+      return wait;
+    }
+  }
+}
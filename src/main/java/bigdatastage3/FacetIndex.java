@@ -0,0 +1,177 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+/**
+ * Per-facet bitmaps over book ids, held in memory by the search service.
+ *
+ * For every value of author, language and decade there is a sparse bitmap
+ * (non-empty 64-bit words plus their positions). Counting a facet for a result
+ * set ANDs those words with a dense bitmap of the result ids, so the cost only
+ * depends on the number of books, not on the size of their metadata documents.
+ */
+public class FacetIndex {
+
+  public static final List<String> FACETS = List.of("author", "language", "decade");
+
+  private static final Bson METADATA = Projections.include("id", "author", "language", "release_date");
+
+  private final MongoCollection<Document> booksCollection;
+  private volatile Snapshot snapshot = new Snapshot();
+
+  public FacetIndex(MongoCollection<Document> booksCollection) {
+    this.booksCollection = booksCollection;
+  }
+
+  /** Reloads the metadata of all books (projection only, no content). */
+  public void rebuild() {
+    long start = System.currentTimeMillis();
+    Snapshot fresh = new Snapshot();
+    try (MongoCursor<Document> cursor = booksCollection.find().projection(METADATA).batchSize(5_000).iterator()) {
+      while (cursor.hasNext()) {
+        fresh.put(cursor.next());
+      }
+    }
+    snapshot = fresh;
+    System.out.printf("🗂 Facet index rebuilt: %d books in %d ms%n",
+        fresh.books.size(), System.currentTimeMillis() - start);
+  }
+
+  /** Updates the facet values of a single book, e.g. after a document.indexed event. */
+  public void refresh(int bookId) {
+    Document doc = booksCollection.find(Filters.eq("id", bookId)).projection(METADATA).first();
+    if (doc != null) {
+      Snapshot current = snapshot;
+      synchronized (current) {
+        current.put(doc);
+      }
+    }
+  }
+
+  /**
+   * Counts the books of the result set per facet value, highest counts first.
+   */
+  public Map<String, List<Map<String, Object>>> count(Collection<Integer> bookIds, int limitPerFacet) {
+    long[] result = toDense(bookIds);
+    Snapshot current = snapshot;
+    Map<String, List<Map<String, Object>>> out = new LinkedHashMap<>();
+
+    synchronized (current) {
+      for (String facet : FACETS) {
+        List<Map<String, Object>> counts = new ArrayList<>();
+        current.values.get(facet).forEach((value, bitmap) -> {
+          int n = bitmap.intersectionCount(result);
+          if (n > 0) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("value", value);
+            entry.put("count", n);
+            counts.add(entry);
+          }
+        });
+        counts.sort(Comparator.comparingInt((Map<String, Object> e) -> (Integer) e.get("count")).reversed());
+        out.put(facet, counts.size() > limitPerFacet ? new ArrayList<>(counts.subList(0, limitPerFacet)) : counts);
+      }
+    }
+    return out;
+  }
+
+  private static long[] toDense(Collection<Integer> bookIds) {
+    int max = 0;
+    for (int id : bookIds) max = Math.max(max, id);
+    long[] words = new long[(max >> 6) + 1];
+    for (int id : bookIds) {
+      if (id >= 0) words[id >> 6] |= 1L << id;
+    }
+    return words;
+  }
+
+  static String decadeOf(String releaseDate) {
+    String year = SearchAPI.extractYear(releaseDate);
+    if ("unknown".equals(year)) return "unknown";
+    return year.substring(0, 3) + "0s";
+  }
+
+  private static String valueOf(String raw) {
+    return raw == null || raw.isBlank() ? "unknown" : raw.trim();
+  }
+
+  // ---------------------- storage ----------------------
+
+  private static final class Snapshot {
+    final Map<String, Map<String, SparseBitmap>> values = new HashMap<>();
+    final Map<Integer, String[]> books = new HashMap<>();
+
+    Snapshot() {
+      for (String facet : FACETS) values.put(facet, new HashMap<>());
+    }
+
+    void put(Document doc) {
+      Integer id = doc.getInteger("id");
+      if (id == null || id < 0) return;
+
+      String[] facetValues = {
+          valueOf(doc.getString("author")),
+          valueOf(doc.getString("language")),
+          decadeOf(doc.getString("release_date")) };
+
+      String[] previous = books.put(id, facetValues);
+      for (int i = 0; i < FACETS.size(); i++) {
+        Map<String, SparseBitmap> facet = values.get(FACETS.get(i));
+        if (previous != null && !previous[i].equals(facetValues[i])) {
+          SparseBitmap old = facet.get(previous[i]);
+          if (old != null) old.clear(id);
+        }
+        facet.computeIfAbsent(facetValues[i], v -> new SparseBitmap()).set(id);
+      }
+    }
+  }
+
+  /** Sorted positions of the non-zero 64-bit words and the words themselves. */
+  static final class SparseBitmap {
+    private int[] keys = new int[2];
+    private long[] words = new long[2];
+    private int size;
+
+    void set(int id) {
+      int pos = find(id >> 6);
+      if (pos < 0) {
+        pos = -pos - 1;
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, size * 2);
+          words = Arrays.copyOf(words, size * 2);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(words, pos, words, pos + 1, size - pos);
+        keys[pos] = id >> 6;
+        words[pos] = 0;
+        size++;
+      }
+      words[pos] |= 1L << id;
+    }
+
+    void clear(int id) {
+      int pos = find(id >> 6);
+      if (pos >= 0) words[pos] &= ~(1L << id);
+    }
+
+    int intersectionCount(long[] dense) {
+      int count = 0;
+      for (int i = 0; i < size && keys[i] < dense.length; i++) {
+        count += Long.bitCount(words[i] & dense[keys[i]]);
+      }
+      return count;
+    }
+
+    private int find(int key) {
+      return Arrays.binarySearch(keys, 0, size, key);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Terms each book has in the index (forward_index), the reverse of the
+ * posting lists. With it a changed or deleted book only touches the posting
+ * lists of the terms that differ, instead of the whole index.
+ *
+ * One document per book and index generation:
+ * {_id: "generation:bookId", generation, book, terms: binary, size}. Each
+ * generation describes its own posting lists, so a generation being built
+ * never changes what the diff against the active one is based on, and the
+ * entries go away with their generation. The terms are sorted and
+ * front-coded like a {@link TermVector}, without counts, and the blob is
+ * deflate-compressed.
+ */
+public class ForwardIndex {
+
+  private final MongoCollection<Document> entries;
+
+  public ForwardIndex(MongoDatabase indexDb) {
+    this.entries = indexDb.getCollection("forward_index");
+  }
+
+  /**
+   * Terms of the book as last indexed into the generation, null if it has no
+   * entry there (not in the generation, or indexed before the forward index
+   * existed).
+   */
+  public SortedSet<String> get(int generation, int bookId) throws IOException {
+    Document entry = entries.find(Filters.eq("_id", key(generation, bookId))).first();
+    return entry == null ? null : decode(entry.get("terms", Binary.class).getData());
+  }
+
+  public void put(int generation, int bookId, Collection<String> terms) throws IOException {
+    entries.replaceOne(Filters.eq("_id", key(generation, bookId)), entry(generation, bookId, terms),
+        new ReplaceOptions().upsert(true));
+  }
+
+  /** Write for {@link #putAll(List)}, for callers that index many books at once. */
+  public WriteModel<Document> putModel(int generation, int bookId, Collection<String> terms) throws IOException {
+    return new ReplaceOneModel<>(Filters.eq("_id", key(generation, bookId)), entry(generation, bookId, terms),
+        new ReplaceOptions().upsert(true));
+  }
+
+  public void putAll(List<WriteModel<Document>> writes) {
+    if (!writes.isEmpty()) {
+      entries.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+  }
+
+  public void remove(int generation, int bookId) {
+    entries.deleteOne(Filters.eq("_id", key(generation, bookId)));
+  }
+
+  /** Removes the entries of a dropped generation. */
+  public void drop(int generation) {
+    entries.deleteMany(Filters.regex("_id", "^" + generation + ":"));
+  }
+
+  /** Removes the entries of every generation but one, and entries without a generation. */
+  public void dropAllExcept(int keep) {
+    entries.deleteMany(Filters.ne("generation", keep));
+  }
+
+  // ---------------------- encoding ----------------------
+
+  private static String key(int generation, int bookId) {
+    return generation + ":" + bookId;
+  }
+
+  private static Document entry(int generation, int bookId, Collection<String> terms) throws IOException {
+    return new Document("_id", key(generation, bookId))
+        .append("generation", generation)
+        .append("book", bookId)
+        .append("terms", new Binary(encode(new TreeSet<>(terms))))
+        .append("size", terms.size());
+  }
+
+  static byte[] encode(SortedSet<String> terms) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, terms.size() * 3));
+    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+      writeVarInt(out, terms.size());
+      String previous = "";
+      for (String term : terms) {
+        int shared = 0;
+        int max = Math.min(previous.length(), term.length());
+        while (shared < max && previous.charAt(shared) == term.charAt(shared)) shared++;
+        // never split a surrogate pair between prefix and suffix
+        if (shared > 0 && shared < term.length() && Character.isLowSurrogate(term.charAt(shared))) shared--;
+
+        byte[] suffix = term.substring(shared).getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, shared);
+        writeVarInt(out, suffix.length);
+        out.write(suffix);
+        previous = term;
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  static SortedSet<String> decode(byte[] data) throws IOException {
+    try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+      int size = readVarInt(in);
+      SortedSet<String> terms = new TreeSet<>();
+      String previous = "";
+      for (int i = 0; i < size; i++) {
+        int shared = readVarInt(in);
+        byte[] suffix = new byte[readVarInt(in)];
+        in.readFully(suffix);
+        previous = previous.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+        terms.add(previous);
+      }
+      return terms;
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
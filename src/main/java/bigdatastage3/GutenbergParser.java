@@ -0,0 +1,98 @@
+package bigdatastage3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass parser for Project Gutenberg plain text books.
+ *
+ * Reads the stream line by line exactly once: header metadata is captured
+ * until the START marker, the body is appended to one buffer until the END
+ * marker, and everything after that is kept as footer. The raw book is
+ * never held in memory as a whole.
+ */
+public class GutenbergParser {
+
+  static final String START_MARKER = "*** START OF THE PROJECT GUTENBERG EBOOK";
+  static final String END_MARKER = "*** END OF THE PROJECT GUTENBERG EBOOK";
+
+  private static final int READ_BUFFER = 64 * 1024;
+
+  public static class ParsedBook {
+    public String title = "";
+    public String author = "";
+    public String releaseDate = "";
+    public String language = "";
+    public String content;
+    public String footer;
+  }
+
+  private enum Section { HEADER, CONTENT, FOOTER }
+
+  /**
+   * @param sizeHint expected number of bytes (e.g. Content-Length), or -1 if unknown
+   */
+  public static ParsedBook parse(InputStream in, long sizeHint) throws IOException {
+    ParsedBook book = new ParsedBook();
+    StringBuilder content = new StringBuilder(sizeHint > 0 ? (int) Math.min(sizeHint, Integer.MAX_VALUE - 8) : 1 << 16);
+    StringBuilder footer = new StringBuilder();
+    Section section = Section.HEADER;
+    boolean expectUpdated = false;
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), READ_BUFFER)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        switch (section) {
+          case HEADER -> {
+            if (expectUpdated) {
+              expectUpdated = false;
+              if (line.trim().startsWith("Most recently updated:")) {
+                book.releaseDate += " | " + line.trim();
+                continue;
+              }
+            }
+            if (line.contains(START_MARKER)) {
+              section = Section.CONTENT;
+            } else if (book.title.isEmpty() && line.startsWith("Title:")) {
+              book.title = line.substring("Title:".length()).trim();
+            } else if (book.author.isEmpty() && line.startsWith("Author:")) {
+              book.author = line.substring("Author:".length()).trim();
+            } else if (book.language.isEmpty() && line.startsWith("Language:")) {
+              book.language = line.substring("Language:".length()).trim();
+            } else if (book.releaseDate.isEmpty() && line.startsWith("Release date:")) {
+              book.releaseDate = line.substring("Release date:".length()).trim();
+              expectUpdated = true;
+            }
+          }
+          case CONTENT -> {
+            if (line.contains(END_MARKER)) {
+              section = Section.FOOTER;
+              footer.append(line.substring(line.indexOf(END_MARKER)));
+            } else if (!line.startsWith("***")) {
+              // leading blank lines are dropped, trailing ones trimmed below
+              if (content.length() > 0 || !line.isBlank()) {
+                content.append(line).append('\n');
+              }
+            }
+          }
+          case FOOTER -> footer.append('\n').append(line);
+        }
+      }
+    }
+
+    if (section != Section.FOOTER) {
+      throw new IOException("Missing Project Gutenberg " + (section == Section.HEADER ? "START" : "END") + " marker");
+    }
+
+    int end = content.length();
+    while (end > 0 && Character.isWhitespace(content.charAt(end - 1))) end--;
+    content.setLength(end);
+
+    book.content = content.toString();
+    book.footer = footer.toString();
+    return book;
+  }
+}
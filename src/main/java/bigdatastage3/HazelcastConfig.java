@@ -7,6 +7,7 @@ import com.hazelcast.core.HazelcastInstance;
 public class HazelcastConfig {
 
     private static HazelcastInstance INSTANCE;
+    private static HazelcastInstance INGEST_INSTANCE;
 
     public static HazelcastInstance getHazelcastInstance() {
         if (INSTANCE == null) {
@@ -42,6 +43,36 @@ public class HazelcastConfig {
         return INSTANCE;
     }
 
+    /**
+     * Small separate cluster of the ingest replicas, used for the shared
+     * download rate limit. Members come from INGEST_HZ_MEMBERS (comma separated).
+     */
+    public static synchronized HazelcastInstance getIngestInstance() {
+        if (INGEST_INSTANCE == null) {
+
+            Config config = new Config();
+            config.setClusterName("ingest-cluster");
+
+            NetworkConfig network = config.getNetworkConfig();
+            network.setPort(5701).setPortAutoIncrement(true);
+
+            JoinConfig join = network.getJoin();
+            join.getMulticastConfig().setEnabled(false);
+            TcpIpConfig tcpIpConfig = join.getTcpIpConfig();
+            tcpIpConfig.setEnabled(true);
+            for (String member : System.getenv().getOrDefault("INGEST_HZ_MEMBERS", "ingest").split(",")) {
+                if (!member.isBlank()) tcpIpConfig.addMember(member.trim());
+            }
+
+            // Buckets are tiny and refill by themselves, one backup is plenty
+            config.addMapConfig(new MapConfig(DownloadRateLimiter.MAP_NAME).setBackupCount(1));
+
+            INGEST_INSTANCE = Hazelcast.newHazelcastInstance(config);
+        }
+
+        return INGEST_INSTANCE;
+    }
+
     public static void shutdown() {
         if (INSTANCE != null) {
             INSTANCE.shutdown();
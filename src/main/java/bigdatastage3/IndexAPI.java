@@ -1,5 +1,7 @@
 package bigdatastage3;
 
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.BulkWriteOptions;
@@ -9,97 +11,289 @@ import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
 import com.mongodb.client.model.WriteModel;
 
-import jakarta.jms.JMSException;
-
 import org.bson.Document;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.IntConsumer;
 
 public class IndexAPI {
 
     private static MongoDatabase indexDb;
     private static MongoCollection<Document> booksCollection;
+    private static SnippetStore snippetStore;
+    private static IndexGenerations generations;
+    private static ForwardIndex forwardIndex;
+    private static BookLeases leases;
 
-    private static MessageBroker broker;
+    private static final Analyzer analyzer = Analyzer.fromEnv();
     public static LocalDateTime lastUpdate = LocalDateTime.now();
 
     /** Must be called once during service startup */
-    public static void init(MongoDatabase indexDatabase, MongoCollection<Document> booksCol) throws IOException {
+    public static void init(MongoDatabase indexDatabase, MongoCollection<Document> booksCol, BookLeases bookLeases)
+            throws IOException {
         indexDb = indexDatabase;
         booksCollection = booksCol;
-        try {
-          broker = new MessageBroker();
-        } catch (JMSException e) {
-          System.err.println("❌ Failed to initialize MessageBroker in IndexAPI");
-          e.printStackTrace();
-        }
+        leases = bookLeases;
+        snippetStore = new SnippetStore(indexDatabase);
+        generations = new IndexGenerations(indexDatabase);
+        forwardIndex = new ForwardIndex(indexDatabase);
         System.out.println("✅ IndexAPI initialized");
     }
 
     /**
      * Tokenizes the document text and updates the distributed inverted index.
+     *
+     * @return the terms that did not exist in the index before this book
+     */
+    public static List<String> processBook(int bookId, String text) {
+        return processBook(bookId, new BufferedReader(new StringReader(text == null ? "" : text)));
+    }
+
+    /**
+     * Streams the book text line by line through the analyzer, so the
+     * decompressed content is never held in memory as a whole.
+     *
+     * @return the terms that did not exist in the index before this book
+     */
+    public static List<String> processBook(int bookId, BufferedReader content) {
+        return processBook(bookId, content, generations.writeTargets(), count -> { });
+    }
+
+    /**
+     * Replaces the indexed text of a book. Only the posting lists of terms
+     * that were added or removed since it was last indexed are written.
+     *
+     * @return the terms that did not exist in the index before
      */
-    public static void processBook(int bookId, String text) {
+    public static List<String> update(int bookId, String newText) {
+        return indexBook(bookId, new BufferedReader(new StringReader(newText == null ? "" : newText)),
+            generations.writeTargets(), count -> { });
+    }
+
+    /**
+     * Removes a book from the index: its postings, snippet data and forward
+     * index entries in the generations written to. The book is marked DELETED.
+     */
+    public static void delete(int bookId) throws IOException {
+        boolean wasIndexed = booksCollection.countDocuments(
+            Filters.and(Filters.eq("id", bookId), Filters.exists("indexedHash"))) > 0;
+        SortedSet<String> terms = null;
+        for (int generation : generations.writeTargets()) {
+            SortedSet<String> entry = forwardIndex.get(generation, bookId);
+            if (entry != null) {
+                terms = entry;
+                updateMongoInvertedIndexBulk(List.of(), entry, bookId, generation, new ArrayList<>());
+                forwardIndex.remove(generation, bookId);
+            } else if (wasIndexed) {
+                pullFromAllBuckets(bookId, generation);
+            }
+        }
+        snippetStore.remove(bookId);
+        booksCollection.updateOne(
+            Filters.eq("id", bookId),
+            Updates.combine(
+                Updates.set("indexStatus", "DELETED"),
+                Updates.unset("indexedHash"),
+                Updates.unset("indexFinishedAt"),
+                BookLeases.cleared()
+            )
+        );
+        lastUpdate = LocalDateTime.now();
+        System.out.printf("🗑 Removed book %d from the index (%s terms)%n", bookId,
+            terms != null ? String.valueOf(terms.size()) : wasIndexed ? "no forward entry, all" : "no");
+    }
+
+    private static List<String> processBook(int bookId, BufferedReader content, int[] targets,
+            IntConsumer indexedTerms) {
         if (alreadyIndexed(bookId)) {
             System.out.printf("ℹ Book %d already indexed, skipping%n", bookId);
-            return;
+            return new ArrayList<>();
         }
+        return indexBook(bookId, content, targets, indexedTerms);
+    }
 
+    private static List<String> indexBook(int bookId, BufferedReader content, int[] targets,
+            IntConsumer indexedTerms) {
+        List<String> newTerms = new ArrayList<>();
         try {
             System.out.println("🔍 Indexing book " + bookId);
 
-            Set<String> terms = tokenize(text);
+            SnippetStore.PassageWriter passages = snippetStore.passageWriter(bookId);
+            MessageDigest fingerprint = ContentStore.newDigest();
+            SnippetStore.OffsetCollector offsets = tokenize(content, passages, fingerprint);
+            Set<String> terms = offsets.terms();
 
             // Bulk update MongoDB inverted index with retry
-            boolean success = retryBulkUpdate(terms, bookId, 3);
+            boolean success = retryBulkUpdate(terms, bookId, 3, targets, newTerms);
 
             if (!success) {
                 throw new RuntimeException("Failed to update MongoDB after retries");
             }
 
-            markIndexed(bookId);
+            // Snippets are optional for search, a failure here must not fail the book
+            try {
+                snippetStore.storeOffsets(bookId, offsets);
+                passages.close();
+            } catch (Exception e) {
+                System.err.printf("⚠ Storing snippet data for book %d failed: %s%n", bookId, e.getMessage());
+            }
+
+            markIndexed(bookId, HexFormat.of().formatHex(fingerprint.digest()));
             lastUpdate = LocalDateTime.now();
+            indexedTerms.accept(terms.size());
 
-            System.out.printf("✅ Indexed book %d (%d unique terms)%n", bookId, terms.size());
+            System.out.printf("✅ Indexed book %d (%d unique terms, %d new)%n", bookId, terms.size(), newTerms.size());
 
         } catch (Exception e) {
-            System.err.printf("❌ Indexing book %d failed: %s%n", bookId, e.getMessage());
+            throw failed(bookId, e);
+        }
+        return newTerms;
+    }
 
-            // Set FAILED status
-            booksCollection.updateOne(
-                Filters.eq("id", bookId),
-                Updates.set("indexStatus", "FAILED")
-            );
+    /**
+     * Indexes a book from the term vector built at ingest time. Term offsets
+     * and passages were already written by ingest, the text is not read.
+     *
+     * @return the terms that did not exist in the index before this book
+     */
+    public static List<String> processTerms(int bookId, TermVector vector, String fingerprint) {
+        return processTerms(bookId, vector, fingerprint, generations.writeTargets(), count -> { });
+    }
 
-            // Notify broker for retry
-            try {
-                broker.sendDocumentIngested(bookId);
-            } catch (Exception ex) {
-                System.err.printf("❌ Broker callback failed for book %d: %s%n", bookId, ex.getMessage());
+    private static List<String> processTerms(int bookId, TermVector vector, String fingerprint, int[] targets,
+            IntConsumer indexedTerms) {
+        List<String> newTerms = new ArrayList<>();
+        if (alreadyIndexed(bookId)) {
+            System.out.printf("ℹ Book %d already indexed, skipping%n", bookId);
+            return newTerms;
+        }
+
+        try {
+            System.out.println("🔍 Indexing book " + bookId + " from its term vector");
+
+            if (!retryBulkUpdate(vector.terms(), bookId, 3, targets, newTerms)) {
+                throw new RuntimeException("Failed to update MongoDB after retries");
             }
+
+            markIndexed(bookId, fingerprint);
+            lastUpdate = LocalDateTime.now();
+            indexedTerms.accept(vector.size());
+
+            System.out.printf("✅ Indexed book %d (%d unique terms, %d new)%n", bookId, vector.size(), newTerms.size());
+
+        } catch (Exception e) {
+            throw failed(bookId, e);
         }
+        return newTerms;
+    }
+
+    /**
+     * Indexes a book from what ingest stored: the term vector if there is one
+     * from the same analyzer, otherwise the text.
+     */
+    public static List<String> processStored(int bookId, ContentStore contentStore, String fingerprint)
+            throws IOException {
+        return processStored(bookId, contentStore, fingerprint, generations.writeTargets(), count -> { });
+    }
+
+    /**
+     * Same as {@link #processStored(int, ContentStore, String)}, but writes
+     * only to the given index generation (the one a reindex builds).
+     * indexedTerms receives the number of distinct terms once the book is indexed.
+     */
+    public static List<String> processStored(int bookId, ContentStore contentStore, String fingerprint,
+            int generation, IntConsumer indexedTerms) throws IOException {
+        return processStored(bookId, contentStore, fingerprint, new int[] { generation }, indexedTerms);
+    }
+
+    private static List<String> processStored(int bookId, ContentStore contentStore, String fingerprint,
+            int[] targets, IntConsumer indexedTerms) throws IOException {
+        TermVector vector = contentStore.readTermVector(bookId, analyzer.signature());
+        if (vector != null && fingerprint != null) {
+            return processTerms(bookId, vector, fingerprint, targets, indexedTerms);
+        }
+
+        BufferedReader content = contentStore.openContent(bookId);
+        if (content == null) {
+            throw new IllegalStateException("Book content not found");
+        }
+        return processBook(bookId, content, targets, indexedTerms);
     }
 
     // ---------------------- Internal Helpers ----------------------
 
-    private static Set<String> tokenize(String text) {
-        Set<String> tokens = new HashSet<>();
-        if (text == null) return tokens;
+    /** Requeueing or parking the book is up to the caller holding its lease ({@link BookLeases}). */
+    private static IllegalStateException failed(int bookId, Exception e) {
+        System.err.printf("❌ Indexing book %d failed: %s%n", bookId, e.getMessage());
+        return new IllegalStateException("Indexing book " + bookId + " failed: " + e.getMessage(), e);
+    }
+
+    /**
+     * Analyzes the text once, keeping the distinct terms and their first
+     * character offsets. Offsets count from the start of the content with
+     * lines joined by '\n', the same text the passage pages are cut from and
+     * the content fingerprint is computed over.
+     */
+    private static SnippetStore.OffsetCollector tokenize(BufferedReader content, SnippetStore.PassageWriter passages,
+            MessageDigest fingerprint) throws IOException {
+        SnippetStore.OffsetCollector offsets = new SnippetStore.OffsetCollector();
+        int[] base = { 0 };
+        Analyzer.TokenConsumer shifted = (term, start, end) -> offsets.accept(term, base[0] + start, base[0] + end);
 
-        Matcher m = Pattern.compile("\\b[a-z]{2,}\\b").matcher(text.toLowerCase());
-        while (m.find()) tokens.add(m.group());
-        return tokens;
+        try (BufferedReader reader = content) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                if (!first) {
+                    passages.append("\n");
+                    fingerprint.update((byte) '\n');
+                    base[0]++;
+                }
+                first = false;
+                analyzer.analyze(line, shifted);
+                fingerprint.update(line.getBytes(StandardCharsets.UTF_8));
+                passages.append(line);
+                base[0] += line.length();
+            }
+        }
+        return offsets;
     }
 
-    private static boolean retryBulkUpdate(Set<String> terms, int bookId, int maxRetries) {
+    /**
+     * Writes the postings of the book to the target generations and records
+     * its terms in their forward index entries. Each generation gets the
+     * difference to its own entry; a generation without one gets every term.
+     */
+    private static boolean retryBulkUpdate(Collection<String> terms, int bookId, int maxRetries, int[] targets,
+            List<String> newTerms) {
         int attempt = 0;
         while (attempt < maxRetries) {
             try {
-                updateMongoInvertedIndexBulk(terms, bookId);
+                // new terms are reported for the first target, the generation being searched
+                newTerms.clear();
+                for (int i = 0; i < targets.length; i++) {
+                    SortedSet<String> previous = forwardIndex.get(targets[i], bookId);
+                    Set<String> removed = new HashSet<>();
+                    Set<String> added = new HashSet<>(terms);
+                    if (previous != null) {
+                        removed.addAll(previous);
+                        removed.removeAll(terms);
+                        added.removeAll(previous);
+                    }
+                    updateMongoInvertedIndexBulk(added, removed, bookId, targets[i],
+                        i == 0 ? newTerms : new ArrayList<>());
+                    forwardIndex.put(targets[i], bookId, terms);
+                    if (i == 0 && previous != null) {
+                        System.out.printf("✏ Book %d changed by %d added and %d removed terms%n", bookId,
+                            added.size(), removed.size());
+                    }
+                }
                 return true;
             } catch (Exception e) {
                 attempt++;
@@ -110,36 +304,84 @@ public class IndexAPI {
         return false;
     }
 
-    private static void updateMongoInvertedIndexBulk(Set<String> terms, int bookId) {
-        Map<String, List<WriteModel<Document>>> bucketWrites = new HashMap<>();
+    /**
+     * Upserts one posting per added term and pulls the book from the posting
+     * lists of removed terms; terms whose document had to be created are
+     * added to newTerms, terms left without postings are deleted.
+     */
+    private static void updateMongoInvertedIndexBulk(Collection<String> added, Collection<String> removed,
+            int bookId, int generation, List<String> newTerms) {
+        Map<String, List<String>> bucketAdded = new HashMap<>();
+        for (String term : added) {
+            bucketAdded.computeIfAbsent(IndexCollections.bucketFor(term), k -> new ArrayList<>()).add(term);
+        }
+        Map<String, List<String>> bucketRemoved = new HashMap<>();
+        for (String term : removed) {
+            bucketRemoved.computeIfAbsent(IndexCollections.bucketFor(term), k -> new ArrayList<>()).add(term);
+        }
+        Set<String> buckets = new HashSet<>(bucketAdded.keySet());
+        buckets.addAll(bucketRemoved.keySet());
 
-        for (String term : terms) {
-            String bucket = term.substring(0, 1);
-            bucketWrites.computeIfAbsent(bucket, k -> new ArrayList<>())
-                .add(new UpdateOneModel<>(
+        for (String bucketName : buckets) {
+            List<String> bucket = bucketAdded.getOrDefault(bucketName, List.of());
+            List<String> gone = bucketRemoved.getOrDefault(bucketName, List.of());
+            // added terms first, so upsert indexes point into bucket
+            List<WriteModel<Document>> writes = new ArrayList<>(bucket.size() + gone.size());
+            for (String term : bucket) {
+                writes.add(new UpdateOneModel<>(
                     Filters.eq("term", term),
                     Updates.addToSet("postings", bookId),
                     new UpdateOptions().upsert(true)
                 ));
+            }
+            for (String term : gone) {
+                writes.add(new UpdateOneModel<>(Filters.eq("term", term), Updates.pull("postings", bookId)));
+            }
+
+            MongoCollection<Document> col = indexDb.getCollection(
+                IndexCollections.collectionName(generation, bucketName));
+            BulkWriteResult result = col.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                newTerms.add(bucket.get(upsert.getIndex()));
+            }
+            if (!gone.isEmpty()) {
+                col.deleteMany(Filters.and(Filters.in("term", gone), Filters.size("postings", 0)));
+            }
         }
+    }
 
-        for (Map.Entry<String, List<WriteModel<Document>>> entry : bucketWrites.entrySet()) {
-            String bucket = entry.getKey();
-            List<WriteModel<Document>> writes = entry.getValue();
-            if (!writes.isEmpty()) {
-                MongoCollection<Document> col = indexDb.getCollection(bucket);
-                col.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    /** Fallback for books indexed before the forward index: every posting list of the generation is searched. */
+    private static void pullFromAllBuckets(int bookId, int generation) {
+        for (String name : IndexCollections.listBuckets(indexDb, generation)) {
+            MongoCollection<Document> col = indexDb.getCollection(name);
+            if (col.updateMany(Filters.eq("postings", bookId), Updates.pull("postings", bookId))
+                    .getModifiedCount() > 0) {
+                col.deleteMany(Filters.size("postings", 0));
             }
         }
     }
 
-    private static void markIndexed(int bookId) {
-        booksCollection.updateOne(
-            Filters.eq("id", bookId),
+    /**
+     * Records the fingerprint of the text that was actually indexed, as long
+     * as this indexer still holds the book. A reindex that reset the book
+     * meanwhile indexes it again into the new generation.
+     */
+    private static void markIndexed(int bookId, String fingerprint) {
+        if (booksCollection.updateOne(
+            leases.held(bookId),
             Updates.combine(
                 Updates.set("indexStatus", "DONE"),
-                Updates.set("indexFinishedAt", new Date())
+                Updates.set("indexedHash", fingerprint),
+                Updates.currentDate("indexFinishedAt"), // database clock, see BulkIndexBuilder catch-up
+                BookLeases.cleared()
             )
+        ).getMatchedCount() == 0) {
+            System.out.printf("⏭ Book %d was reset or taken over while indexing, not marked%n", bookId);
+        }
+        // Books ingested before fingerprints existed get theirs from the indexed text
+        booksCollection.updateOne(
+            Filters.and(Filters.eq("id", bookId), Filters.exists("contentHash", false)),
+            Updates.set("contentHash", fingerprint)
         );
         System.out.println("Marked book " + bookId + " as indexed");
     }
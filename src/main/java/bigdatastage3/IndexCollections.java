@@ -0,0 +1,67 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Naming rules for the inverted index in the invertedIndex database.
+ * Terms are spread over one collection per first letter ("bucket").
+ *
+ * A full reindex builds a new generation of buckets next to the one being
+ * searched (see {@link IndexGenerations}). Generation 0 are the original
+ * collections named after the bucket ("a"), later generations are prefixed
+ * ("g3.a").
+ */
+public class IndexCollections {
+
+  private static final String GENERATION_PREFIX = "g";
+
+  /** Bucket collection that holds the posting document of the given term (its first code point). */
+  public static String bucketFor(String term) {
+    return term.substring(0, Character.charCount(term.codePointAt(0)));
+  }
+
+  /** Collection of the bucket in the given generation. */
+  public static String collectionName(int generation, String bucket) {
+    return generation == 0 ? bucket : GENERATION_PREFIX + generation + "." + bucket;
+  }
+
+  /** Collection that holds the posting document of the term in the given generation. */
+  public static String collectionFor(int generation, String term) {
+    return collectionName(generation, bucketFor(term));
+  }
+
+  /** True for bucket names (a, b, c, ...), false for bookkeeping collections. */
+  public static boolean isBucket(String name) {
+    return !name.isEmpty()
+        && name.codePointCount(0, name.length()) == 1
+        && Character.isLetter(name.codePointAt(0));
+  }
+
+  /** Generation of a posting collection, -1 for bookkeeping collections. */
+  public static int generationOf(String collectionName) {
+    if (isBucket(collectionName)) return 0;
+    int dot = collectionName.indexOf('.');
+    if (!collectionName.startsWith(GENERATION_PREFIX) || dot < 0 || !isBucket(collectionName.substring(dot + 1))) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(collectionName.substring(GENERATION_PREFIX.length(), dot));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Names of the posting collections of one generation. */
+  public static List<String> listBuckets(MongoDatabase indexDb, int generation) {
+    List<String> buckets = new ArrayList<>();
+    for (String name : indexDb.listCollectionNames()) {
+      if (generationOf(name) == generation) {
+        buckets.add(name);
+      }
+    }
+    return buckets;
+  }
+}
@@ -0,0 +1,143 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+
+import java.util.Date;
+
+/**
+ * Pointer to the index generation that is searched (index_meta).
+ *
+ * A full reindex builds a new generation while search keeps reading the
+ * active one. New books are written to both until the build is done; then
+ * the pointer is flipped with one atomic update and the old generation's
+ * collections are dropped. A bulk build ({@link BulkIndexBuilder}) loads its
+ * generation with inserts, so live writes only join once it is loaded.
+ *
+ * Pointer document: {_id: "generation", active, building, buildRunId, bulk, previous, switchedAt}
+ */
+public class IndexGenerations {
+
+  private static final String POINTER_ID = "generation";
+
+  private final MongoDatabase indexDb;
+  private final MongoCollection<Document> meta;
+
+  public IndexGenerations(MongoDatabase indexDb) {
+    this.indexDb = indexDb;
+    this.meta = indexDb.getCollection("index_meta");
+  }
+
+  /** The generation search reads from; 0 before the first generation build. */
+  public int active() {
+    Document pointer = pointer();
+    return pointer == null ? 0 : pointer.getInteger("active", 0);
+  }
+
+  /** Generations new postings go to: the active one and the one being built, if any. */
+  public int[] writeTargets() {
+    Document pointer = pointer();
+    if (pointer == null) return new int[] { 0 };
+    int active = pointer.getInteger("active", 0);
+    Integer building = pointer.getInteger("building");
+    boolean loading = pointer.getBoolean("bulk", false);
+    return building == null || building == active || loading ? new int[] { active } : new int[] { active, building };
+  }
+
+  /**
+   * Starts building a new generation for the reindex run. Collections of
+   * abandoned builds and leftovers of earlier generations are dropped first.
+   *
+   * @param bulk live writes skip the generation until {@link #openForWrites(int)}
+   * @return the generation to build
+   */
+  public int startBuild(String runId, boolean bulk) {
+    int active = active();
+    int highest = active;
+    for (String name : indexDb.listCollectionNames()) {
+      highest = Math.max(highest, IndexCollections.generationOf(name));
+    }
+    dropAllExcept(active);
+
+    int generation = highest + 1;
+    meta.updateOne(
+        Filters.eq("_id", POINTER_ID),
+        Updates.combine(
+            Updates.setOnInsert("active", active),
+            Updates.set("building", generation),
+            Updates.set("buildRunId", runId),
+            Updates.set("bulk", bulk),
+            Updates.set("buildStartedAt", new Date())),
+        new UpdateOptions().upsert(true));
+    System.out.printf("🏗 Building index generation %d (active: %d)%n", generation, active);
+    return generation;
+  }
+
+  /** Lets live indexing write to a bulk-loaded generation as well. */
+  public void openForWrites(int generation) {
+    meta.updateOne(
+        Filters.and(Filters.eq("_id", POINTER_ID), Filters.eq("building", generation)),
+        Updates.set("bulk", false));
+  }
+
+  /**
+   * Makes the generation built by the run the active one. Only one caller
+   * succeeds, the others get -1.
+   *
+   * @return the generation that was active before
+   */
+  public int activate(String runId, int generation) {
+    Document before = meta.findOneAndUpdate(
+        Filters.and(
+            Filters.eq("_id", POINTER_ID),
+            Filters.eq("building", generation),
+            Filters.eq("buildRunId", runId)),
+        Updates.combine(
+            Updates.set("active", generation),
+            Updates.unset("building"),
+            Updates.unset("buildRunId"),
+            Updates.unset("bulk"),
+            Updates.unset("buildStartedAt"),
+            Updates.set("switchedAt", new Date())),
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+    if (before == null) return -1;
+
+    int previous = before.getInteger("active", 0);
+    meta.updateOne(Filters.eq("_id", POINTER_ID), Updates.set("previous", previous));
+    System.out.printf("🔀 Index generation %d is now active (was %d)%n", generation, previous);
+    return previous;
+  }
+
+  /** Drops the posting collections of the generation, unless it became active again. */
+  public void drop(int generation) {
+    if (generation == active()) return;
+    int dropped = 0;
+    for (String name : IndexCollections.listBuckets(indexDb, generation)) {
+      indexDb.getCollection(name).drop();
+      dropped++;
+    }
+    new ForwardIndex(indexDb).drop(generation);
+    System.out.printf("🗑 Dropped index generation %d (%d collections)%n", generation, dropped);
+  }
+
+  private void dropAllExcept(int keep) {
+    for (String name : indexDb.listCollectionNames()) {
+      int generation = IndexCollections.generationOf(name);
+      if (generation >= 0 && generation != keep) {
+        indexDb.getCollection(name).drop();
+      }
+    }
+    new ForwardIndex(indexDb).dropAllExcept(keep);
+  }
+
+  private Document pointer() {
+    return meta.find(Filters.eq("_id", POINTER_ID)).first();
+  }
+}
@@ -0,0 +1,109 @@
+package bigdatastage3;
+
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.MessageListener;
+import jakarta.jms.Session;
+
+import java.util.Map;
+
+/**
+ * Feeds the indexing worker from two lanes, so single books somebody waits
+ * for do not queue behind a bulk load:
+ * - interactive: document.ingested.interactive (single-book ingests)
+ * - bulk: document.ingested (batches, backfills, requeues, replays)
+ *
+ * Each worker thread has its own transacted session and pulls one message
+ * at a time; nothing is prefetched, so queued messages stay on the broker
+ * for whichever indexer is free. INDEX_INTERACTIVE_WORKERS of the threads
+ * look at the interactive lane first, the others at the bulk lane first, and
+ * every thread takes from the other lane when its own is empty. The
+ * interactive lane therefore always has that share of the threads, and no
+ * thread idles while either lane has work.
+ *
+ * A message is committed once the worker returns. If the worker throws, the
+ * session is rolled back and the broker redelivers the message after its
+ * backoff.
+ *
+ * Configuration (environment):
+ * - INDEX_WORKERS: indexing threads per container
+ * - INDEX_INTERACTIVE_WORKERS: threads that prefer the interactive lane
+ */
+public class IndexingLanes {
+
+  private static final long IDLE_WAIT_MS = 250;
+  private static final long ERROR_PAUSE_MS = 1_000;
+  private static final String PULL_ONLY = "?consumer.prefetchSize=0";
+
+  private final MessageBroker broker;
+  private final MessageListener worker;
+  private final int workers;
+  private final int interactiveWorkers;
+
+  public IndexingLanes(MessageBroker broker, MessageListener worker, int workers, int interactiveWorkers) {
+    this.broker = broker;
+    this.worker = worker;
+    this.workers = Math.max(1, workers);
+    this.interactiveWorkers = Math.max(1, Math.min(this.workers, interactiveWorkers));
+  }
+
+  public static IndexingLanes fromEnv(MessageBroker broker, MessageListener worker) {
+    Map<String, String> env = System.getenv();
+    return new IndexingLanes(broker, worker,
+        Integer.parseInt(env.getOrDefault("INDEX_WORKERS", "2")),
+        Integer.parseInt(env.getOrDefault("INDEX_INTERACTIVE_WORKERS", "1")));
+  }
+
+  public IndexingLanes start() throws JMSException {
+    for (int i = 0; i < workers; i++) {
+      boolean interactiveFirst = i < interactiveWorkers;
+      Session session = broker.createTransactedSession();
+      MessageConsumer interactiveLane = session.createConsumer(
+          session.createQueue(MessageBroker.QUEUE_DOC_INGESTED_INTERACTIVE + PULL_ONLY));
+      MessageConsumer bulkLane = session.createConsumer(
+          session.createQueue(MessageBroker.QUEUE_DOC_INGESTED + PULL_ONLY));
+
+      Thread thread = new Thread(() -> {
+        if (interactiveFirst) {
+          run(session, interactiveLane, bulkLane);
+        } else {
+          run(session, bulkLane, interactiveLane);
+        }
+      }, "indexing-" + (interactiveFirst ? "interactive-" : "bulk-") + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    System.out.printf("🚦 Indexing lanes: %d workers, %d prefer the interactive lane%n", workers, interactiveWorkers);
+    return this;
+  }
+
+  private void run(Session session, MessageConsumer own, MessageConsumer other) {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Message message = own.receiveNoWait();
+        if (message == null) {
+          message = other.receiveNoWait();
+        }
+        if (message == null) {
+          message = own.receive(IDLE_WAIT_MS);
+        }
+        if (message == null) continue;
+
+        try {
+          worker.onMessage(message);
+          session.commit();
+        } catch (RuntimeException e) {
+          session.rollback(); // redelivered after the backoff
+        }
+      } catch (JMSException e) {
+        System.err.println("⚠ Indexing lane: " + e.getMessage());
+        try {
+          Thread.sleep(ERROR_PAUSE_MS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+}
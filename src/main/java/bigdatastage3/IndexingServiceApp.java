@@ -20,29 +20,38 @@ public class IndexingServiceApp {
       MongoDatabase[] dbs = RepositoryConnection.connectToDB();
       MongoCollection<Document> booksCollection = dbs[0].getCollection("books");
       MongoDatabase indexDb = dbs[1];
-
-      // --- Initialize indexing core ---
-      IndexAPI.init(indexDb, booksCollection);
+      ContentStore contentStore = new ContentStore(dbs[0]);
 
       // --- Message broker ---
       MessageBroker broker = new MessageBroker();
 
+      // --- Initialize indexing core ---
+      BookLeases bookLeases = BookLeases.fromEnv(booksCollection, indexDb, broker).start();
+      IndexAPI.init(indexDb, booksCollection, bookLeases);
+
       // --- Workers ---
-      IndexingWorker worker = new IndexingWorker(broker, booksCollection);
+      IndexingWorker worker = new IndexingWorker(broker, booksCollection, contentStore, bookLeases);
 
-      ReindexingWorker reindexWorker = new ReindexingWorker(booksCollection, indexDb);
+      ReindexingWorker reindexWorker = new ReindexingWorker(booksCollection, indexDb, contentStore,
+          ReindexExecutor.fromEnv(), broker, bookLeases);
 
       // --- Subscriptions ---
+      IndexingLanes.fromEnv(broker, worker).start();
+
       broker.subscribe(
-          MessageBroker.QUEUE_DOC_INGESTED,
-          worker);
+          MessageBroker.QUEUE_DOC_DELETED,
+          worker::onDeleted);
 
       broker.subscribeTopic(
           MessageBroker.TOPIC_REINDEX_REQ,
           reindexWorker);
 
+      broker.subscribeTopic(
+          MessageBroker.TOPIC_REINDEX_CONTROL,
+          reindexWorker::onControl);
+
       System.out.println(
-          "📥 IndexingService running (listening on document.ingested and reindex.request)");
+          "📥 IndexingService running (listening on document.ingested[.interactive], document.deleted, reindex.request and reindex.control)");
 
       // Keep container alive
       Thread.currentThread().join();
@@ -4,26 +4,35 @@ import com.google.gson.Gson;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Updates;
-import java.util.Date;
 import java.time.LocalDateTime;
 
+import jakarta.jms.JMSException;
 import jakarta.jms.Message;
 import jakarta.jms.MessageListener;
 import jakarta.jms.TextMessage;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * JMS consumer for document.ingested events.
  *
  * Flow:
- * 1. Receive event from ActiveMQ
- * 2. Load document from datalake (MongoDB)
+ * 1. Receive event from ActiveMQ (interactive or bulk lane, see {@link IndexingLanes})
+ * 2. Stream the compressed content from the datalake (MongoDB)
  * 3. Update in-memory / distributed inverted index
  * 4. Emit document.indexed event
+ *
+ * A failed book is released and the exception thrown, so the message is
+ * rolled back and the broker redelivers it with backoff. After the last attempt the book is parked and
+ * the message moved to the dead-letter queue. Replayed dead letters may claim
+ * parked books again.
  */
 public class IndexingWorker implements MessageListener {
 
@@ -31,17 +40,24 @@ public class IndexingWorker implements MessageListener {
 
   private final MessageBroker broker;
   private final MongoCollection<Document> booksCollection;
+  private final ContentStore contentStore;
+  private final BookLeases leases;
 
   public IndexingWorker(MessageBroker broker,
-                        MongoCollection<Document> booksCollection) {
+                        MongoCollection<Document> booksCollection,
+                        ContentStore contentStore,
+                        BookLeases leases) {
     this.broker = broker;
     this.booksCollection = booksCollection;
+    this.contentStore = contentStore;
+    this.leases = leases;
   }
 
   @Override
   public void onMessage(Message message) {
 
     Integer bookId = null;
+    boolean claimedByUs = false;
 
     try {
       if (!(message instanceof TextMessage)) {
@@ -57,21 +73,23 @@ public class IndexingWorker implements MessageListener {
       }
 
       bookId = ((Double) payload.get("bookId")).intValue();
+      boolean replay = MessageBroker.isReplay(message);
+      List<Bson> claimable = new ArrayList<>(List.of(
+          Filters.exists("indexStatus", false),
+          Filters.eq("indexStatus", "NEW")));
+      if (replay) {
+        claimable.add(Filters.eq("indexStatus", "PARKED"));
+      }
 
-      // 🔒 Atomic claim
+      // 🔒 Atomic claim with a lease, renewed while we work on the book
       Document claimed = booksCollection.findOneAndUpdate(
           Filters.and(
               Filters.eq("id", bookId),
-              Filters.or(
-                  Filters.exists("indexStatus", false),
-                  Filters.eq("indexStatus", "NEW")
-              )
-          ),
-          Updates.combine(
-              Updates.set("indexStatus", "INDEXING"),
-              Updates.set("indexStartedAt", new Date())
+              Filters.or(claimable)
           ),
+          leases.claim(replay),
           new FindOneAndUpdateOptions()
+              .projection(Projections.include("contentHash", "indexedHash"))
               .returnDocument(ReturnDocument.BEFORE)
       );
 
@@ -79,45 +97,87 @@ public class IndexingWorker implements MessageListener {
         System.out.printf("⏭ Book %d already indexed or indexing%n", bookId);
         return;
       }
-
-      Document doc = booksCollection.find(Filters.eq("id", bookId)).first();
-      if (doc == null) {
-        throw new IllegalStateException("Book not found");
-      }
-
-      String content = doc.getString("content");
-      if (content == null || content.isBlank()) {
-        throw new IllegalStateException("Empty content");
+      claimedByUs = true;
+      leases.track(bookId);
+
+      // Same text as last time: nothing to do, the content is not even loaded
+      String contentHash = claimed.getString("contentHash");
+      if (contentHash != null && contentHash.equals(claimed.getString("indexedHash"))) {
+        booksCollection.updateOne(leases.held(bookId),
+            Updates.combine(Updates.set("indexStatus", "DONE"), BookLeases.cleared()));
+        broker.sendDocumentIndexed(bookId, List.of());
+        System.out.printf("⏭ Book %d unchanged since last indexing%n", bookId);
+        return;
       }
 
       System.out.println("📥 Indexing book " + bookId);
-      // 🔨 Index
-      IndexAPI.processBook(bookId, content);
+      // 🔨 Index (from the ingest-time term vector if there is one)
+      // ✅ marked done by IndexAPI, unless a reindex reset the book meanwhile
+      List<String> newTerms = IndexAPI.processStored(bookId, contentStore, contentHash);
       IndexAPI.lastUpdate = LocalDateTime.now();
 
-      // ✅ Mark done
-      booksCollection.updateOne(
-          Filters.eq("id", bookId),
-          Updates.set("indexStatus", "DONE")
-      );
-
-      broker.sendDocumentIndexed(bookId);
+      broker.sendDocumentIndexed(bookId, newTerms);
       System.out.printf("✅ Book %d indexed%n", bookId);
 
     } catch (Exception e) {
       System.err.println("❌ Indexing failed for book " + bookId);
       e.printStackTrace();
 
-      if (bookId != -1) {
-        booksCollection.updateOne(
-            Filters.eq("id", bookId),
-            Updates.combine(
-                Updates.set("indexStatus", "ERROR"),
-                Updates.set("indexError", e.getMessage())
-            )
-        );
+      // released for the redelivery, or parked (and document.failed sent) after the last attempt
+      boolean parked = false;
+      if (claimedByUs) {
+        try {
+          parked = leases.failed(bookId, e.getMessage(), false);
+        } catch (Exception ex) {
+          System.err.println("❌ Failed to release book " + bookId + ": " + ex.getMessage());
+        }
+      }
+      int deliveries = MessageBroker.deliveryCount(message);
+      if (!parked && deliveries < leases.maxAttempts()) {
+        // the broker redelivers the message after a backoff
+        throw new IllegalStateException("Indexing book " + bookId + " failed (delivery " + deliveries + ")", e);
+      }
+      deadLetter(message, bookId, e.getMessage());
+    } finally {
+      if (claimedByUs) {
+        leases.untrack(bookId);
       }
     }
   }
-}
 
+  private void deadLetter(Message message, Integer bookId, String error) {
+    try {
+      // both lanes share one dead-letter queue, replays go to the bulk lane
+      broker.sendDeadLetter(MessageBroker.QUEUE_DOC_INGESTED, message, bookId, error);
+      System.err.printf("☠ Book %s moved to %s.DLQ after %d deliveries%n", bookId,
+          MessageBroker.QUEUE_DOC_INGESTED, MessageBroker.deliveryCount(message));
+    } catch (JMSException e) {
+      // the broker's redelivery limit still stops the message
+      throw new IllegalStateException("Dead-lettering book " + bookId + " failed", e);
+    }
+  }
+
+  /** document.deleted: removes a book that ingest marked DELETING from the index. */
+  public void onDeleted(Message message) {
+    Integer bookId = null;
+    try {
+      if (!(message instanceof TextMessage text)) return;
+      Map<?, ?> payload = GSON.fromJson(text.getText(), Map.class);
+      if (payload == null || !(payload.get("bookId") instanceof Number id)) {
+        System.err.println("⚠ Invalid deletion message payload");
+        return;
+      }
+      bookId = id.intValue();
+
+      if (booksCollection.countDocuments(
+          Filters.and(Filters.eq("id", bookId), Filters.eq("indexStatus", "DELETING"))) == 0) {
+        System.out.printf("⏭ Book %d is not marked for deletion%n", bookId);
+        return;
+      }
+      IndexAPI.delete(bookId);
+    } catch (Exception e) {
+      // stays DELETING, deleting it again at ingest resends the message
+      System.err.println("❌ Deleting book " + bookId + " from the index failed: " + e.getMessage());
+    }
+  }
+}
@@ -6,32 +6,94 @@ import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Projections;
-import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 public class IngestAPI {
 
   private static final Gson gson = new Gson();
   private static MongoDatabase[] databases;
   private static MongoCollection<Document> booksCollection;
+  private static MongoCollection<Document> jobsCollection;
   private static MessageBroker broker;
-  private static final HttpClient httpClient = HttpClient.newHttpClient();
+  private static DownloadCache downloadCache;
+  private static ContentStore contentStore;
+
+  // INGEST_TOKENIZE=true: analyze at ingest time and hand the indexer a term vector
+  private static final boolean TOKENIZE = Boolean.parseBoolean(System.getenv().getOrDefault("INGEST_TOKENIZE", "false"));
+  private static Analyzer analyzer;
+  private static SnippetStore snippetStore;
+
+  // One pooled client for all downloads (HTTP/2 where the server supports it)
+  private static final HttpClient httpClient = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+
+  private static final int MAX_DOWNLOADS_PER_HOST = envInt("INGEST_MAX_DOWNLOADS_PER_HOST", 4);
+  private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+  private static final ExecutorService batchExecutor =
+      Executors.newFixedThreadPool(envInt("INGEST_BATCH_PARALLELISM", 8));
+
+  private static final Bson STATUS_FIELDS = Projections.fields(
+      Projections.include("id", "ingestStatus", "indexStatus"), Projections.excludeId());
+  private static final int STATUS_CHUNK = 1_000;
+  private static final int MAX_STATUS_IDS = 50_000;
+  private static final int MAX_LIST_PAGE = 100_000;
+
+  private static DownloadRateLimiter rateLimiter;
+  private static RetryScheduler retryScheduler;
+  private static final AtomicLong downloads = new AtomicLong();
+  private static final AtomicLong downloadErrors = new AtomicLong();
+
+  /** Download failure that retrying won't fix, e.g. an unknown book id. */
+  static class NotRetryableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    NotRetryableException(String message) {
+      super(message);
+    }
+  }
 
   public static void main(String[] args) {
 
@@ -40,6 +102,19 @@ public class IngestAPI {
     try {
       databases = RepositoryConnection.connectToDB();
       booksCollection = databases[0].getCollection("books");
+      jobsCollection = databases[0].getCollection("ingest_jobs");
+      // status lookups, claims and keyset pagination all go through the id
+      booksCollection.createIndex(Indexes.ascending("id"));
+      contentStore = new ContentStore(databases[0]);
+      if (TOKENIZE) {
+        analyzer = Analyzer.fromEnv();
+        snippetStore = new SnippetStore(databases[1]);
+        System.out.println("🔤 Tokenizing at ingest time (" + analyzer.signature() + ")");
+      }
+
+      downloadCache = DownloadCache.fromEnv();
+      rateLimiter = DownloadRateLimiter.fromEnv();
+      retryScheduler = RetryScheduler.fromEnv(batchExecutor, id -> ingestBook(id, false, false));
 
       // Initialize message broker for emitting "document.ingested" events.
       broker = new MessageBroker();
@@ -67,17 +142,35 @@ public class IngestAPI {
       ctx.result(gson.toJson(status));
     });
 
-    // GET /ingest/{book_id}
+    // GET /ingest/{book_id}?lane=interactive|bulk
     app.get("/ingest/{book_id}", IngestAPI::handleIngestBook);
 
+    // DELETE /ingest/{book_id}  -> removed from content store and index
+    app.delete("/ingest/{book_id}", IngestAPI::handleDeleteBook);
+
+    // GET /ingest/cache
+    app.get("/ingest/cache", ctx -> ctx.result(gson.toJson(downloadCache.stats())));
+
+    // GET /ingest/metrics
+    app.get("/ingest/metrics", IngestAPI::handleMetrics);
+
+    // POST /ingest/batch  {"book_ids": [...]}  -> job id
+    app.post("/ingest/batch", IngestAPI::handleIngestBatch);
+
+    // GET /ingest/batch/{job_id}
+    app.get("/ingest/batch/{job_id}", IngestAPI::handleGetBatch);
+
     // GET /ingest/status/{book_id}
     app.get("/ingest/status/{book_id}", IngestAPI::handleGetStatus);
 
-    // GET /ingest/list
+    // POST /ingest/status  {"book_ids": [...]}
+    app.post("/ingest/status", IngestAPI::handleBulkStatus);
+
+    // GET /ingest/list?limit=&after=&count=exact|estimated|none
     app.get("/ingest/list", IngestAPI::handleListBooks);
   }
 
-  public static void handleIngestBook(Context ctx) throws IOException, InterruptedException {
+  public static void handleIngestBook(Context ctx) {
     String bookId = ctx.pathParam("book_id");
     int idNum;
     try {
@@ -87,12 +180,135 @@ public class IngestAPI {
       return;
     }
 
+    boolean refresh = Boolean.parseBoolean(ctx.queryParam("refresh"));
+    // single books go to the interactive indexing lane unless the caller is a bulk load
+    boolean interactive = !"bulk".equals(ctx.queryParam("lane"));
+    Map<String, Object> response = ingestBook(idNum, refresh, interactive);
+    if ("failed".equals(response.get("status"))) {
+      ctx.status(500);
+    }
+    ctx.result(gson.toJson(response));
+  }
+
+  /**
+   * Starts a background job ingesting all given ids. Progress is kept in
+   * BigData.ingest_jobs so that any ingest replica can answer the poll.
+   */
+  public static void handleIngestBatch(Context ctx) {
+    List<Integer> bookIds = new ArrayList<>();
+    boolean refresh;
+    try {
+      Map<?, ?> body = gson.fromJson(ctx.body(), Map.class);
+      Object ids = body == null ? null : body.get("book_ids");
+      if (!(ids instanceof List<?> list) || list.isEmpty()) {
+        ctx.status(400).result(gson.toJson(Map.of("error", "Body must contain a non-empty 'book_ids' array")));
+        return;
+      }
+      Set<Integer> unique = new LinkedHashSet<>();
+      for (Object id : list) {
+        unique.add(id instanceof Number n ? n.intValue() : Integer.parseInt(id.toString()));
+      }
+      bookIds.addAll(unique);
+      refresh = Boolean.TRUE.equals(body.get("refresh"));
+    } catch (Exception e) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Invalid book_ids: " + e.getMessage())));
+      return;
+    }
+
+    String jobId = UUID.randomUUID().toString();
+    jobsCollection.insertOne(new Document("_id", jobId)
+        .append("status", "RUNNING")
+        .append("total", bookIds.size())
+        .append("downloaded", 0)
+        .append("skipped", 0)
+        .append("failed", 0)
+        .append("failedIds", new ArrayList<Integer>())
+        .append("createdAt", new Date()));
+
+    for (int id : bookIds) {
+      batchExecutor.submit(() -> runBatchItem(jobId, id, refresh));
+    }
+    System.out.println("📦 Started ingest batch " + jobId + " with " + bookIds.size() + " books");
+
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("job_id", jobId);
+    response.put("total", bookIds.size());
+    response.put("status", "RUNNING");
+    ctx.status(202).result(gson.toJson(response));
+  }
+
+  public static void handleGetBatch(Context ctx) {
+    Document job = jobsCollection.find(Filters.eq("_id", ctx.pathParam("job_id"))).first();
+    if (job == null) {
+      ctx.status(404).result(gson.toJson(Map.of("error", "Unknown job id")));
+      return;
+    }
+
+    int total = job.getInteger("total", 0);
+    int finished = job.getInteger("downloaded", 0) + job.getInteger("skipped", 0) + job.getInteger("failed", 0);
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("job_id", job.getString("_id"));
+    response.put("status", job.getString("status"));
+    response.put("total", total);
+    response.put("downloaded", job.getInteger("downloaded", 0));
+    response.put("skipped", job.getInteger("skipped", 0));
+    response.put("failed", job.getInteger("failed", 0));
+    response.put("progress", total == 0 ? 1.0 : (double) finished / total);
+    response.put("failed_ids", job.getList("failedIds", Integer.class));
+    response.put("created_at", job.getDate("createdAt"));
+    response.put("finished_at", job.getDate("finishedAt"));
+    ctx.result(gson.toJson(response));
+  }
+
+  private static void runBatchItem(String jobId, int bookId, boolean refresh) {
+    String outcome;
+    try {
+      Object status = ingestBook(bookId, refresh, false).get("status");
+      outcome = "downloaded".equals(status) ? "downloaded" : "failed".equals(status) ? "failed" : "skipped";
+    } catch (Exception e) {
+      outcome = "failed";
+    }
+
+    Document update = new Document("$inc", new Document(outcome, 1));
+    if (outcome.equals("failed")) {
+      update.append("$push", new Document("failedIds", new Document("$each", List.of(bookId)).append("$slice", -1000)));
+    }
+    Document job = jobsCollection.findOneAndUpdate(Filters.eq("_id", jobId), update,
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+
+    if (job != null && job.getInteger("downloaded", 0) + job.getInteger("skipped", 0)
+        + job.getInteger("failed", 0) >= job.getInteger("total", 0)) {
+      jobsCollection.updateOne(Filters.eq("_id", jobId), Updates.combine(
+          Updates.set("status", "DONE"),
+          Updates.set("finishedAt", new Date())));
+      System.out.println("✅ Ingest batch " + jobId + " finished");
+    }
+  }
+
+  /**
+   * Claims, downloads and stores a single book and emits document.ingested.
+   * Shared by the single-book endpoint and batch jobs.
+   *
+   * With refresh=true an already ingested book is downloaded again. If its
+   * content fingerprint matches the indexed one, the index is left alone and
+   * no event is sent.
+   *
+   * @param interactive index on the interactive lane (document.ingested.interactive)
+   */
+  static Map<String, Object> ingestBook(int idNum, boolean refresh, boolean interactive) {
+    String bookId = String.valueOf(idNum);
+    List<Bson> claimable = new ArrayList<>(List.of(
+        Filters.exists("ingestStatus", false),
+        Filters.eq("ingestStatus", "FAILED")));
+    if (refresh) {
+      claimable.add(Filters.eq("ingestStatus", "DONE"));
+    }
+    // a deleted book can come back once it is out of the index
+    claimable.add(Filters.and(Filters.eq("ingestStatus", "DELETED"), Filters.eq("indexStatus", "DELETED")));
     Document claimed = booksCollection.findOneAndUpdate(
         Filters.and(
             Filters.eq("id", idNum),
-            Filters.or(
-                Filters.exists("ingestStatus", false),
-                Filters.eq("ingestStatus", "FAILED"))),
+            Filters.or(claimable)),
         new Document()
             .append("$set", new Document("ingestStatus", "INGESTING"))
             .append("$setOnInsert", new Document("id", idNum)),
@@ -101,39 +317,61 @@ public class IngestAPI {
             .returnDocument(ReturnDocument.AFTER));
 
     if (claimed == null) {
-      ctx.result(gson.toJson(Map.of(
+      return Map.of(
           "book_id", bookId,
-          "status", "already_ingesting_or_done")));
-      return;
+          "status", "already_ingesting_or_done");
     }
 
     try {
       System.out.println("Received request to ingest book: " + bookId);
       System.out.flush();
-      // Download book from Project Gutenberg.
-      String urlString = "https://www.gutenberg.org/cache/epub/" + bookId + "/pg" + bookId + ".txt";
-      String bookContent = downloadBook(urlString);
-
-      // Extract metadata from the book text.
-      String title = extractMetadata(bookContent, "Title:");
-      String author = extractMetadata(bookContent, "Author:");
-      String releaseDate = extractReleaseDate(bookContent);
-      String language = extractMetadata(bookContent, "Language:");
-
-      String[] contentAndFooter = extractContent(bookContent);
-
-      System.out.println("Inserting book with id: " + bookId + " and title: " + title + " by " + author);
+      // Load book from the local cache or download it from Project Gutenberg.
+      GutenbergParser.ParsedBook parsed = loadBook(idNum);
+
+      System.out.println("Inserting book with id: " + bookId + " and title: " + parsed.title + " by " + parsed.author);
+
+      String contentHash = ContentStore.fingerprint(parsed.content);
+      boolean unchanged = contentHash.equals(claimed.getString("indexedHash"))
+          && "DONE".equals(claimed.getString("indexStatus"));
+
+      // Text goes to book_contents first, so a DONE book always has its content
+      if (!unchanged) {
+        if (TOKENIZE) {
+          contentStore.put(idNum, parsed.content, parsed.footer, tokenize(idNum, parsed.content),
+              analyzer.signature());
+        } else {
+          contentStore.put(idNum, parsed.content, parsed.footer);
+        }
+      }
 
-      Document book = buildDbEntry(idNum, contentAndFooter[0], title, author, releaseDate, language,
-          contentAndFooter[1]);
+      // $set keeps indexStatus / indexedHash of a previous ingest
+      Document book = buildDbEntry(idNum, parsed.title, parsed.author, parsed.releaseDate, parsed.language);
+      book.append("contentLength", parsed.content.length());
+      book.append("contentHash", contentHash);
       book.append("ingestStatus", "DONE");
-      booksCollection.replaceOne(Filters.eq("id", idNum), book, new ReplaceOptions().upsert(true));
+      if (!unchanged) {
+        book.append("indexStatus", "NEW");
+      }
+      Document unset = new Document("ingestAttempts", "").append("ingestError", "");
+      if (!unchanged) {
+        unset.append("indexAttempts", ""); // new content, so a parked book gets fresh attempts
+      }
+      booksCollection.updateOne(Filters.eq("id", idNum), new Document("$set", book).append("$unset", unset));
+
+      if (unchanged) {
+        System.out.println("⏭ Book " + idNum + " unchanged, index left as is");
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("book_id", bookId);
+        response.put("status", "unchanged");
+        response.put("path", "BigData.books");
+        return response;
+      }
 
       // Emit "document.ingested" event so that the indexing service can react
       // asynchronously.
       try {
-        broker.sendDocumentIngested(idNum);
-        System.out.println("📨 Sent document.ingested for book " + idNum);
+        broker.sendDocumentIngested(idNum, interactive);
+        System.out.println("📨 Sent document.ingested for book " + idNum + (interactive ? " (interactive)" : ""));
       } catch (Exception ex) {
         System.err.println("Failed to send broker event: " + ex.getMessage());
       }
@@ -142,31 +380,90 @@ public class IngestAPI {
       response.put("book_id", bookId);
       response.put("status", "downloaded");
       response.put("path", "BigData.books");
-      ctx.result(gson.toJson(response));
+      return response;
     } catch (Exception e) {
       System.err.println(e.getMessage());
-      booksCollection.updateOne(
+      Document failed = booksCollection.findOneAndUpdate(
           Filters.eq("id", idNum),
-          new Document("$set", new Document("ingestStatus", "FAILED")));
-      HttpRequest request = HttpRequest.newBuilder()
-          .uri(URI.create(System.getenv("CONTROLLER_API") + "/control/run/" + bookId))
-          .POST(HttpRequest.BodyPublishers.noBody())
-          .build();
-      try {
-        httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-      } catch (Exception ex) {
-        System.err.println("Controller callback failed: " + ex.getMessage());
+          Updates.combine(
+              Updates.set("ingestStatus", "FAILED"),
+              Updates.set("ingestError", String.valueOf(e.getMessage())),
+              Updates.inc("ingestAttempts", 1)),
+          new FindOneAndUpdateOptions()
+              .projection(Projections.include("ingestAttempts"))
+              .returnDocument(ReturnDocument.AFTER));
+
+      // Retry later with backoff instead of hammering the upstream right away
+      long retryIn = RetryScheduler.GAVE_UP;
+      if (!(e instanceof NotRetryableException)) {
+        int attempts = failed == null ? 1 : failed.getInteger("ingestAttempts", 1);
+        retryIn = retryScheduler.schedule(idNum, attempts);
       }
+      if (retryIn == RetryScheduler.GAVE_UP) {
+        try {
+          broker.sendDocumentFailed(idNum, "ingest", e.getMessage());
+        } catch (Exception ex) {
+          System.err.println("Failed to send broker event: " + ex.getMessage());
+        }
+      }
+
       Map<String, Object> response = new LinkedHashMap<>();
       response.put("book_id", bookId);
       response.put("status", "failed");
       response.put("path", "BigData.books");
       response.put("error", e.getMessage());
-      ctx.status(500).result(gson.toJson(response));
+      if (retryIn >= 0) {
+        response.put("retry_in_ms", retryIn);
+      }
+      return response;
     }
   }
 
-  public static void handleGetStatus(Context ctx) {
+  /**
+   * Runs the analyzer over the parsed text while it is still in memory. The
+   * term offsets and passages for snippets are written right away, the term
+   * counts are returned for book_contents.
+   */
+  private static TermVector tokenize(int bookId, String content) {
+    TermVector.Builder vector = new TermVector.Builder();
+    SnippetStore.OffsetCollector offsets = new SnippetStore.OffsetCollector();
+    analyzer.analyze(content, (term, start, end) -> {
+      vector.accept(term, start, end);
+      offsets.accept(term, start, end);
+    });
+
+    // Snippets are optional for search, a failure here must not fail the book
+    try {
+      snippetStore.storeOffsets(bookId, offsets);
+      SnippetStore.PassageWriter passages = snippetStore.passageWriter(bookId);
+      passages.append(content);
+      passages.close();
+    } catch (Exception e) {
+      System.err.printf("⚠ Storing snippet data for book %d failed: %s%n", bookId, e.getMessage());
+    }
+    return vector.build();
+  }
+
+  public static void handleMetrics(Context ctx) {
+    Map<String, Object> downloadStats = new LinkedHashMap<>();
+    downloadStats.put("started", downloads.get());
+    downloadStats.put("http_errors", downloadErrors.get());
+
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("downloads", downloadStats);
+    metrics.put("rate_limiter", rateLimiter.stats());
+    metrics.put("retries", retryScheduler.stats());
+    metrics.put("cache", downloadCache.stats());
+    ctx.result(gson.toJson(metrics));
+  }
+
+  /**
+   * Deletes a book: its content goes right away, the indexer removes it from
+   * the index (document.deleted). Books queued for or being indexed are
+   * refused with 409; deleting a book again while it is DELETING resends the
+   * event.
+   */
+  public static void handleDeleteBook(Context ctx) {
     String bookId = ctx.pathParam("book_id");
     int idNum;
     try {
@@ -175,97 +472,274 @@ public class IngestAPI {
       ctx.status(400).result("Invalid book_id: must be a number");
       return;
     }
-    String status = "available";
-    Document book = booksCollection.find(Filters.eq("id", idNum)).first();
-    if (book == null) {
-      status = "unavailable";
+
+    Document claimed = booksCollection.findOneAndUpdate(
+        Filters.and(
+            Filters.eq("id", idNum),
+            Filters.or(
+                Filters.and(Filters.in("ingestStatus", "DONE", "FAILED"),
+                    Filters.nin("indexStatus", "NEW", "INDEXING")),
+                Filters.and(Filters.eq("ingestStatus", "DELETED"), Filters.eq("indexStatus", "DELETING")))),
+        Updates.combine(
+            Updates.set("ingestStatus", "DELETED"),
+            Updates.set("indexStatus", "DELETING"),
+            Updates.currentDate("deletedAt"))); // database clock, compared by the bulk index catch-up
+    if (claimed == null) {
+      Document book = booksCollection.find(Filters.eq("id", idNum)).projection(STATUS_FIELDS).first();
+      if (book == null) {
+        ctx.status(404).result(gson.toJson(Map.of("book_id", bookId, "error", "Book not found")));
+      } else if ("DELETED".equals(book.getString("indexStatus"))) {
+        ctx.result(gson.toJson(Map.of("book_id", bookId, "status", "deleted")));
+      } else {
+        ctx.status(409).result(gson.toJson(Map.of("book_id", bookId,
+            "error", "Book is being ingested or indexed, try again later")));
+      }
+      return;
+    }
+
+    contentStore.delete(idNum);
+    try {
+      broker.sendDocumentDeleted(idNum);
+    } catch (Exception ex) {
+      System.err.println("Failed to send broker event: " + ex.getMessage());
+      ctx.status(500).result(gson.toJson(Map.of("book_id", bookId, "status", "failed",
+          "error", "Book is marked for deletion but the indexer was not notified, delete it again")));
+      return;
+    }
+    System.out.println("🗑 Book " + idNum + " deleted, removal from the index queued");
+    ctx.status(202).result(gson.toJson(Map.of("book_id", bookId, "status", "deleting")));
+  }
+
+  public static void handleGetStatus(Context ctx) {
+    String bookId = ctx.pathParam("book_id");
+    int idNum;
+    try {
+      idNum = Integer.parseInt(bookId);
+    } catch (NumberFormatException e) {
+      ctx.status(400).result("Invalid book_id: must be a number");
+      return;
     }
+    Document book = booksCollection.find(Filters.eq("id", idNum)).projection(STATUS_FIELDS).first();
     Map<String, Object> response = new LinkedHashMap<>();
     response.put("book_id", bookId);
-    response.put("status", status);
+    response.putAll(statusOf(book));
     ctx.result(gson.toJson(response));
   }
 
-  public static void handleListBooks(Context ctx) {
-    long bookCount = booksCollection.countDocuments();
-    List<Integer> idList = new ArrayList<>();
-
-    try (MongoCursor<Document> cursor = booksCollection.find().projection(Projections.include("id")).iterator()) {
-      while (cursor.hasNext()) {
-        Document doc = cursor.next();
-        idList.add(doc.getInteger("id"));
+  /**
+   * Status of many books in one call: {"book_ids": [...]}. Answered from the
+   * id index with a projection, chunked into $in queries.
+   */
+  public static void handleBulkStatus(Context ctx) {
+    Set<Integer> ids = new LinkedHashSet<>();
+    try {
+      Map<?, ?> body = gson.fromJson(ctx.body(), Map.class);
+      Object list = body == null ? null : body.get("book_ids");
+      if (!(list instanceof List<?> values)) {
+        ctx.status(400).result(gson.toJson(Map.of("error", "Body must contain a 'book_ids' array")));
+        return;
+      }
+      for (Object id : values) {
+        ids.add(id instanceof Number n ? n.intValue() : Integer.parseInt(id.toString()));
       }
     } catch (Exception e) {
-      System.err.println("Failed to list books: " + e.getMessage());
-      ctx.status(500);
+      ctx.status(400).result(gson.toJson(Map.of("error", "Invalid book_ids: " + e.getMessage())));
+      return;
+    }
+    if (ids.size() > MAX_STATUS_IDS) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "At most " + MAX_STATUS_IDS + " ids per request")));
       return;
     }
 
+    Map<Integer, Document> found = new HashMap<>();
+    List<Integer> all = new ArrayList<>(ids);
+    for (int from = 0; from < all.size(); from += STATUS_CHUNK) {
+      List<Integer> chunk = all.subList(from, Math.min(all.size(), from + STATUS_CHUNK));
+      for (Document doc : booksCollection.find(Filters.in("id", chunk)).projection(STATUS_FIELDS)) {
+        found.put(doc.getInteger("id"), doc);
+      }
+    }
+
+    Map<String, Object> books = new LinkedHashMap<>();
+    for (int id : all) {
+      books.put(String.valueOf(id), statusOf(found.get(id)));
+    }
     Map<String, Object> response = new LinkedHashMap<>();
-    response.put("count", bookCount);
-    response.put("books", idList);
+    response.put("count", found.size());
+    response.put("books", books);
     ctx.result(gson.toJson(response));
   }
 
-  private static String downloadBook(String urlStr) throws IOException, InterruptedException {
-    URI uri = URI.create(urlStr);
-    HttpClient client = HttpClient.newHttpClient();
-    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
-    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+  private static Map<String, Object> statusOf(Document book) {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("status", book == null ? "unavailable" : "available");
+    if (book != null) {
+      status.put("ingest_status", book.getString("ingestStatus"));
+      status.put("index_status", book.getString("indexStatus"));
+    }
+    return status;
+  }
 
-    if (response.statusCode() != 200) {
-      throw new IOException("Failed to download book: HTTP " + response.statusCode());
+  /**
+   * Lists the ids of all stored books, streamed straight from the cursor.
+   *
+   * Query parameters:
+   * - limit: page size; without it all ids are returned
+   * - after: keyset cursor, the last id of the previous page (next_after)
+   * - count: "exact" (default), "estimated" (collection metadata, no scan) or "none"
+   */
+  public static void handleListBooks(Context ctx) {
+    int limit;
+    Integer after;
+    try {
+      limit = ctx.queryParam("limit") == null ? 0 : Math.min(Integer.parseInt(ctx.queryParam("limit")), MAX_LIST_PAGE);
+      after = ctx.queryParam("after") == null ? null : Integer.parseInt(ctx.queryParam("after"));
+    } catch (NumberFormatException e) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "limit and after must be numbers")));
+      return;
+    }
+    if (limit < 0) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "limit must not be negative")));
+      return;
+    }
+    String countMode = Objects.requireNonNullElse(ctx.queryParam("count"), "exact");
+    if (!List.of("exact", "estimated", "none").contains(countMode)) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "count must be 'exact', 'estimated' or 'none'")));
+      return;
     }
 
-    return response.body();
+    // everything that can fail up front happens before the 200 goes out
+    Long bookCount;
+    MongoCursor<Document> cursor;
+    try {
+      bookCount = switch (countMode) {
+        case "estimated" -> booksCollection.estimatedDocumentCount();
+        case "none" -> null;
+        default -> booksCollection.countDocuments();
+      };
+      cursor = booksCollection
+          .find(after == null ? new Document() : Filters.gt("id", after))
+          .projection(Projections.fields(Projections.include("id"), Projections.excludeId()))
+          .sort(Sorts.ascending("id"))
+          .limit(limit)
+          .batchSize(5_000)
+          .iterator();
+    } catch (RuntimeException e) {
+      System.err.println("Failed to list books: " + e.getMessage());
+      ctx.status(500).result(gson.toJson(Map.of("error", "Listing books failed")));
+      return;
+    }
+
+    ctx.contentType("application/json");
+    try (cursor;
+         Writer out = new BufferedWriter(new OutputStreamWriter(ctx.outputStream(), StandardCharsets.UTF_8))) {
+      out.write("{\"count\":" + bookCount + ",\"books\":[");
+      int n = 0;
+      Integer last = null;
+      try {
+        while (cursor.hasNext()) {
+          last = cursor.next().getInteger("id");
+          if (last == null) continue;
+          if (n++ > 0) out.write(',');
+          out.write(Integer.toString(last));
+        }
+      } catch (RuntimeException e) {
+        // the status is already sent: close the JSON with an error instead of cutting it off
+        System.err.println("Listing books failed after " + n + " ids: " + e.getMessage());
+        out.write("],\"error\":\"Listing books failed\",\"complete\":false}");
+        return;
+      }
+      out.write("]");
+      if (limit > 0 && n == limit) {
+        out.write(",\"next_after\":" + last);
+      }
+      out.write("}");
+    } catch (IOException e) {
+      System.err.println("Failed to send the book list: " + e.getMessage()); // client went away
+    }
   }
 
-  private static String extractMetadata(String text, String key) {
-    for (String line : text.split("\n")) {
-      if (line.startsWith(key)) {
-        return line.substring(key.length()).trim();
+  /**
+   * Parses the book from the download cache if present (memory-mapped),
+   * otherwise downloads it, storing the raw bytes in the cache on the way.
+   */
+  private static GutenbergParser.ParsedBook loadBook(int bookId) throws IOException, InterruptedException {
+    Path cached = downloadCache.lookup(bookId);
+    if (cached != null) {
+      System.out.println("💾 Using cached download for book " + bookId);
+      try (InputStream in = DownloadCache.openMapped(cached)) {
+        return GutenbergParser.parse(in, Files.size(cached));
       }
     }
-    return "";
+    if (downloadCache.isOffline()) {
+      throw new IOException("Book " + bookId + " is not available offline");
+    }
+
+    String urlString = "https://www.gutenberg.org/cache/epub/" + bookId + "/pg" + bookId + ".txt";
+    return downloadBook(bookId, urlString);
   }
 
-  private static String extractReleaseDate(String text) {
-    String releaseDate = "";
-    String[] lines = text.split("\n");
-    for (int i = 0; i < lines.length; i++) {
-      if (lines[i].startsWith("Release date:")) {
-        releaseDate = lines[i].substring("Release date:".length()).trim();
-        if (i + 1 < lines.length && lines[i + 1].trim().startsWith("Most recently updated:")) {
-          releaseDate += " | " + lines[i + 1].trim();
+  /**
+   * Streams the book from Gutenberg and parses it on the fly; the raw text is
+   * never materialized as one String. At most INGEST_MAX_DOWNLOADS_PER_HOST
+   * downloads run against the same host at a time, and all replicas together
+   * start at most INGEST_RATE_PER_SEC downloads per second.
+   */
+  private static GutenbergParser.ParsedBook downloadBook(int bookId, String urlStr)
+      throws IOException, InterruptedException {
+    URI uri = URI.create(urlStr);
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        .header("Accept-Encoding", "gzip")
+        .timeout(Duration.ofMinutes(2))
+        .GET()
+        .build();
+
+    Semaphore permits = hostPermits.computeIfAbsent(uri.getHost(), h -> new Semaphore(MAX_DOWNLOADS_PER_HOST));
+    permits.acquire();
+    try {
+      rateLimiter.acquire(uri.getHost());
+      downloads.incrementAndGet();
+      HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+      if (response.statusCode() != 200) {
+        response.body().close();
+        downloadErrors.incrementAndGet();
+        String message = "Failed to download book: HTTP " + response.statusCode();
+        // the book does not exist, asking again won't help
+        throw response.statusCode() == 404 ? new NotRetryableException(message) : new IOException(message);
+      }
+
+      boolean gzip = response.headers().firstValue("Content-Encoding")
+          .map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+      InputStream body = gzip ? new GZIPInputStream(response.body(), 64 * 1024) : response.body();
+      if (downloadCache.isEnabled()) {
+        Path stored = downloadCache.store(bookId, body);
+        try (InputStream in = DownloadCache.openMapped(stored)) {
+          return GutenbergParser.parse(in, Files.size(stored));
         }
-        break;
       }
+      long contentLength = gzip ? -1 : response.headers().firstValueAsLong("Content-Length").orElse(-1);
+      return GutenbergParser.parse(body, contentLength);
+    } finally {
+      permits.release();
     }
-    return releaseDate;
   }
 
-  private static String[] extractContent(String text) {
-    int start = text.indexOf("*** START OF THE PROJECT GUTENBERG EBOOK");
-    int end = text.indexOf("*** END OF THE PROJECT GUTENBERG EBOOK");
-
-    if (start != -1 && end != -1) {
-      String content = text.substring(start, end).replaceAll("(?m)^\\*{3}.*$", "").trim();
-      String footer = text.substring(end);
-      return new String[] { content, footer };
-    } else {
-      return null; // Fallback if markers are missing.
+  private static int envInt(String key, int def) {
+    try {
+      return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)));
+    } catch (Exception e) {
+      return def;
     }
   }
 
-  private static Document buildDbEntry(int book_id, String content, String title, String author, String releaseDate,
-      String language, String footer) {
+  private static Document buildDbEntry(int book_id, String title, String author, String releaseDate,
+      String language) {
     return new Document()
         .append("id", book_id)
         .append("title", title)
         .append("author", author)
         .append("release_date", releaseDate)
-        .append("language", language)
-        .append("content", content)
-        .append("footer", footer);
+        .append("language", language);
   }
 }
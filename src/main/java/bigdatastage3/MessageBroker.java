@@ -4,27 +4,42 @@ import com.google.gson.Gson;
 import jakarta.jms.*;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.RedeliveryPolicy;
+import org.apache.activemq.command.ActiveMQQueue;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * 
  *
  * Queue-ji / events:
- * - document.ingested
- * - document.indexed
+ * - document.ingested (queue, redelivered with exponential backoff, then moved to document.ingested.DLQ)
+ * - document.ingested.interactive (queue, same for single books a user waits for, see {@link IndexingLanes})
+ * - document.indexed (topic, every search node keeps its term dictionary up to date)
+ * - document.failed (topic, a book that ingest or indexing gave up on)
+ * - document.deleted (queue, a book to remove from the index)
  * - reindex.request
+ * - reindex.control (topic, pause/resume of a running reindex)
+ * - index.switched (topic, a reindex made a new index generation the active one)
  */
 public class MessageBroker implements Closeable {
 
   public static final String QUEUE_DOC_INGESTED = "document.ingested";
-  public static final String QUEUE_DOC_INDEXED = "document.indexed";
+  public static final String QUEUE_DOC_INGESTED_INTERACTIVE = "document.ingested.interactive";
+  public static final String QUEUE_DOC_DELETED = "document.deleted";
+  public static final String TOPIC_DOC_INDEXED = "document.indexed";
+  public static final String TOPIC_DOC_FAILED = "document.failed";
   public static final String TOPIC_REINDEX_REQ = "reindex.request";
+  public static final String TOPIC_REINDEX_CONTROL = "reindex.control";
+  public static final String TOPIC_INDEX_SWITCHED = "index.switched";
 
   private static final Gson GSON = new Gson();
+  private static final int MAX_TERMS_PER_EVENT = 5_000;
+  private static final String DLQ_SUFFIX = ".DLQ";
+  private static final long REPLAY_RECEIVE_MS = 1_000;
 
   private final Connection connection;
   private final Session session;
@@ -32,7 +47,11 @@ public class MessageBroker implements Closeable {
   public MessageBroker() throws JMSException {
     String brokerUrl = System.getenv("BROKER_URL");
 
-    ConnectionFactory factory = new ActiveMQConnectionFactory(brokerUrl);
+    ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(brokerUrl);
+    // a failing message waits for its redelivery without holding up the messages behind it
+    factory.setNonBlockingRedelivery(true);
+    factory.getRedeliveryPolicyMap().put(new ActiveMQQueue(QUEUE_DOC_INGESTED), indexingRedelivery());
+    factory.getRedeliveryPolicyMap().put(new ActiveMQQueue(QUEUE_DOC_INGESTED_INTERACTIVE), indexingRedelivery());
     this.connection = factory.createConnection();
     this.connection.start();
 
@@ -43,27 +62,123 @@ public class MessageBroker implements Closeable {
   // ---------- PRODUCERS ----------
 
   public void sendDocumentIngested(int bookId) throws JMSException {
-    Destination queue = session.createQueue(QUEUE_DOC_INGESTED);
+    sendDocumentIngested(bookId, false);
+  }
+
+  /** @param interactive somebody waits for the book: use the interactive lane instead of the bulk one */
+  public void sendDocumentIngested(int bookId, boolean interactive) throws JMSException {
+    Destination queue = session.createQueue(interactive ? QUEUE_DOC_INGESTED_INTERACTIVE : QUEUE_DOC_INGESTED);
     sendJson(queue, Map.of(
         "bookId", bookId,
         "event", "document.ingested"));
   }
 
-  public void sendDocumentIndexed(int bookId) throws JMSException {
-    Destination queue = session.createQueue(QUEUE_DOC_INDEXED);
+  public void sendDocumentDeleted(int bookId) throws JMSException {
+    Destination queue = session.createQueue(QUEUE_DOC_DELETED);
     sendJson(queue, Map.of(
         "bookId", bookId,
-        "event", "document.indexed"));
+        "event", "document.deleted"));
+  }
+
+  /**
+   * Publishes document.indexed together with the terms this book added to the
+   * vocabulary. If there are too many, only the flag is sent and subscribers
+   * reload their dictionary instead.
+   */
+  public void sendDocumentIndexed(int bookId, Collection<String> newTerms) throws JMSException {
+    Destination topic = session.createTopic(TOPIC_DOC_INDEXED);
+    Map<String, Object> payload = new HashMap<>();
+    payload.put("bookId", bookId);
+    payload.put("event", "document.indexed");
+    if (newTerms.size() <= MAX_TERMS_PER_EVENT) {
+      payload.put("newTerms", newTerms);
+    } else {
+      payload.put("newTermsTruncated", true);
+    }
+    sendJson(topic, payload);
   }
 
-  public void sendReindexRequest() throws JMSException {
+  /**
+   * Publishes document.failed once a book will not be processed any further
+   * without outside help (no retries left).
+   *
+   * @param stage "ingest" or "index"
+   */
+  public void sendDocumentFailed(int bookId, String stage, String error) throws JMSException {
+    Destination topic = session.createTopic(TOPIC_DOC_FAILED);
+    Map<String, Object> payload = new HashMap<>();
+    payload.put("bookId", bookId);
+    payload.put("event", "document.failed");
+    payload.put("stage", stage);
+    payload.put("error", error == null ? "" : error);
+    sendJson(topic, payload);
+  }
+
+  /**
+   * @param mode "full" builds a new index generation, "incremental" only
+   *             reindexes books whose content fingerprint changed, "bulk"
+   *             builds the new generation offline with a sort-merge
+   */
+  public void sendReindexRequest(String mode) throws JMSException {
     Destination topic = session.createTopic(TOPIC_REINDEX_REQ);
     sendJson(topic, Map.of(
         "event", "reindex.request",
-        "runId", UUID.randomUUID().toString()));
+        "runId", UUID.randomUUID().toString(),
+        "mode", mode));
+  }
+
+  /** @param action "pause" or "resume" the running reindex on all indexers */
+  public void sendReindexControl(String action) throws JMSException {
+    Destination topic = session.createTopic(TOPIC_REINDEX_CONTROL);
+    sendJson(topic, Map.of(
+        "event", "reindex.control",
+        "action", action));
   }
 
-  private void sendJson(Destination dest, Map<String, Object> payload) throws JMSException {
+  public void sendIndexSwitched(int generation) throws JMSException {
+    Destination topic = session.createTopic(TOPIC_INDEX_SWITCHED);
+    sendJson(topic, Map.of(
+        "event", "index.switched",
+        "generation", generation));
+  }
+
+  /**
+   * Moves a message that failed its last delivery to the dead-letter queue of
+   * its queue (name + ".DLQ"). The text is kept; book, error and number of
+   * deliveries are added as properties.
+   */
+  public synchronized void sendDeadLetter(String queueName, Message original, Integer bookId, String error)
+      throws JMSException {
+    TextMessage msg = session.createTextMessage(original instanceof TextMessage text ? text.getText() : "");
+    if (bookId != null) msg.setIntProperty("bookId", bookId);
+    msg.setStringProperty("error", error == null ? "" : error);
+    msg.setIntProperty("deliveries", deliveryCount(original));
+    msg.setLongProperty("deadLetteredAt", System.currentTimeMillis());
+    MessageProducer producer = session.createProducer(session.createQueue(queueName + DLQ_SUFFIX));
+    producer.send(msg);
+    producer.close();
+  }
+
+  /** Deliveries of the message so far, 1 on the first one. */
+  public static int deliveryCount(Message message) {
+    try {
+      return Math.max(1, message.getIntProperty("JMSXDeliveryCount"));
+    } catch (JMSException e) {
+      return 1;
+    }
+  }
+
+  /** True for messages moved back from a dead-letter queue by {@link #replayDeadLetters}. */
+  public static boolean isReplay(Message message) {
+    try {
+      return message.propertyExists("replay") && message.getBooleanProperty("replay");
+    } catch (JMSException e) {
+      return false;
+    }
+  }
+
+  // JMS sessions are single-threaded, ingest batches send from several threads
+  private synchronized void sendJson(Destination dest, Map<String, Object> payload) throws JMSException {
     MessageProducer producer = session.createProducer(dest);
     TextMessage msg = session.createTextMessage(GSON.toJson(payload));
     producer.send(msg);
@@ -72,6 +187,11 @@ public class MessageBroker implements Closeable {
 
   // ---------- CONSUMERS ----------
 
+  /** A transacted session of its own, for a thread that receives synchronously. */
+  public Session createTransactedSession() throws JMSException {
+    return connection.createSession(true, Session.SESSION_TRANSACTED);
+  }
+
   public MessageConsumer subscribe(String queueName, MessageListener listener) throws JMSException {
     Destination queue = session.createQueue(queueName);
     MessageConsumer consumer = session.createConsumer(queue);
@@ -89,6 +209,78 @@ public class MessageBroker implements Closeable {
     return consumer;
   }
 
+  // ---------- DEAD LETTERS ----------
+
+  /**
+   * The oldest dead letters of the queue, without removing them. Browses on
+   * its own session, the shared one belongs to the senders.
+   */
+  public List<Map<String, Object>> browseDeadLetters(String queueName, int limit) throws JMSException {
+    List<Map<String, Object>> letters = new ArrayList<>();
+    try (Session browsing = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+         QueueBrowser browser = browsing.createBrowser(browsing.createQueue(queueName + DLQ_SUFFIX))) {
+      Enumeration<?> messages = browser.getEnumeration();
+      while (messages.hasMoreElements() && letters.size() < limit) {
+        Message message = (Message) messages.nextElement();
+        Map<String, Object> letter = new LinkedHashMap<>();
+        letter.put("message_id", message.getJMSMessageID());
+        letter.put("book_id", message.propertyExists("bookId") ? message.getIntProperty("bookId") : null);
+        letter.put("error", message.getStringProperty("error"));
+        letter.put("deliveries", message.propertyExists("deliveries") ? message.getIntProperty("deliveries") : null);
+        letter.put("dead_lettered_at",
+            message.propertyExists("deadLetteredAt") ? message.getLongProperty("deadLetteredAt") : null);
+        letters.add(letter);
+      }
+    }
+    return letters;
+  }
+
+  /**
+   * Moves dead letters back to their queue, all of them or only those of the
+   * given books. They are marked as replay, so parked books get fresh
+   * attempts. Receiving and sending happen in one transaction.
+   *
+   * @return the number of replayed messages
+   */
+  public int replayDeadLetters(String queueName, Set<Integer> bookIds, int limit) throws JMSException {
+    String selector = bookIds.isEmpty() ? null
+        : bookIds.stream().map(id -> "bookId = " + id).collect(Collectors.joining(" OR "));
+    Session tx = createTransactedSession();
+    try {
+      MessageConsumer consumer = tx.createConsumer(tx.createQueue(queueName + DLQ_SUFFIX), selector);
+      MessageProducer producer = tx.createProducer(tx.createQueue(queueName));
+      int replayed = 0;
+      Message message;
+      while (replayed < limit && (message = consumer.receive(REPLAY_RECEIVE_MS)) != null) {
+        TextMessage copy = tx.createTextMessage(message instanceof TextMessage text ? text.getText() : "");
+        copy.setBooleanProperty("replay", true);
+        producer.send(copy);
+        replayed++;
+      }
+      tx.commit();
+      return replayed;
+    } finally {
+      tx.close();
+    }
+  }
+
+  /**
+   * Redelivery of document.ingested: first after INDEX_REDELIVERY_DELAY_MS,
+   * doubling up to INDEX_REDELIVERY_MAX_DELAY_MS. The indexer dead-letters a
+   * message itself after INDEX_MAX_ATTEMPTS; the limit here is only a backstop.
+   */
+  private static RedeliveryPolicy indexingRedelivery() {
+    Map<String, String> env = System.getenv();
+    RedeliveryPolicy policy = new RedeliveryPolicy();
+    policy.setInitialRedeliveryDelay(Long.parseLong(env.getOrDefault("INDEX_REDELIVERY_DELAY_MS", "2000")));
+    policy.setRedeliveryDelay(policy.getInitialRedeliveryDelay());
+    policy.setUseExponentialBackOff(true);
+    policy.setBackOffMultiplier(2.0);
+    policy.setMaximumRedeliveryDelay(Long.parseLong(env.getOrDefault("INDEX_REDELIVERY_MAX_DELAY_MS", "60000")));
+    policy.setMaximumRedeliveries(Integer.parseInt(env.getOrDefault("INDEX_MAX_ATTEMPTS", "3")));
+    return policy;
+  }
+
   @Override
   public void close() throws IOException {
     try {
@@ -0,0 +1,257 @@
+package bigdatastage3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent set of processed book ids for the ControllingUnit.
+ *
+ * In memory the set is a BitSet (book ids are small, dense ints), so lookups
+ * are O(1). On disk it is a snapshot plus an append-only log:
+ *
+ * - processed.snapshot: the BitSet words (little endian longs), loaded through a memory mapping
+ * - processed.log: 4-byte ids added since the snapshot
+ *
+ * Appends are group-committed: a writer thread collects all ids queued within
+ * a short window, writes them with one write and one fsync, and only then
+ * completes the callers. Once the log holds {@value #COMPACT_EVERY} ids it is
+ * folded into a new snapshot. Startup maps the snapshot and replays the log,
+ * so it does not depend on how many books were processed over time.
+ *
+ * A processed_books.txt from older versions is migrated on first start.
+ */
+public class ProcessedSet implements AutoCloseable {
+
+  static final int COMPACT_EVERY = 10_000;
+  private static final long COMMIT_WINDOW_MS = 5;
+  private static final int MAX_GROUP = 4_096;
+
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final BitSet ids = new BitSet();
+  private final FileChannel log;
+  private int logEntries;
+
+  private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  // ids in the set that are not durable yet, guarded by this
+  private final Map<Integer, CompletableFuture<Void>> uncommitted = new HashMap<>();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  private record Pending(int id, CompletableFuture<Void> done) {
+  }
+
+  public ProcessedSet(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    this.snapshotFile = dir.resolve("processed.snapshot");
+    this.logFile = dir.resolve("processed.log");
+
+    long start = System.currentTimeMillis();
+    migrateLegacy(dir.resolve("processed_books.txt"));
+    loadSnapshot();
+    this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    replayLog();
+    System.out.printf("📒 Processed set loaded: %d books in %d ms%n", size(), System.currentTimeMillis() - start);
+
+    this.writer = new Thread(this::writeLoop, "processed-set-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  public synchronized boolean contains(int bookId) {
+    return bookId >= 0 && ids.get(bookId);
+  }
+
+  public synchronized int size() {
+    return ids.cardinality();
+  }
+
+  public synchronized List<Integer> toList() {
+    List<Integer> out = new ArrayList<>(ids.cardinality());
+    ids.stream().forEach(out::add);
+    return out;
+  }
+
+  /** Adds the id and returns once it is durable on disk. */
+  public void add(int bookId) throws IOException {
+    if (bookId < 0) throw new IllegalArgumentException("Negative book id: " + bookId);
+    CompletableFuture<Void> done;
+    synchronized (this) {
+      if (ids.get(bookId)) {
+        // added by another caller, possibly still waiting for its commit
+        done = uncommitted.get(bookId);
+        if (done == null) return;
+      } else {
+        ids.set(bookId);
+        done = new CompletableFuture<>();
+        uncommitted.put(bookId, done);
+        queue.add(new Pending(bookId, done));
+      }
+    }
+    try {
+      done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for commit", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to persist book " + bookId, e.getCause());
+    }
+  }
+
+  // ---------------------- group commit ----------------------
+
+  private void writeLoop() {
+    List<Pending> group = new ArrayList<>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) continue;
+        group.add(first);
+        // give concurrent callers a moment to join this commit
+        Thread.sleep(COMMIT_WINDOW_MS);
+        queue.drainTo(group, MAX_GROUP - 1);
+        commit(group);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      group.clear();
+
+      if (logEntries >= COMPACT_EVERY) {
+        try {
+          compact();
+        } catch (Exception e) {
+          // the log still holds every id, compaction is retried after the next commit
+          System.err.println("⚠ Compacting the processed set failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void commit(List<Pending> group) {
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(group.size() * Integer.BYTES);
+      for (Pending p : group) buffer.putInt(p.id());
+      buffer.flip();
+      while (buffer.hasRemaining()) log.write(buffer);
+      log.force(false);
+    } catch (Exception e) {
+      synchronized (this) {
+        for (Pending p : group) {
+          ids.clear(p.id()); // not durable, so not processed
+          uncommitted.remove(p.id());
+        }
+      }
+      group.forEach(p -> p.done().completeExceptionally(e));
+      return;
+    }
+    logEntries += group.size();
+    synchronized (this) {
+      group.forEach(p -> uncommitted.remove(p.id()));
+    }
+    group.forEach(p -> p.done().complete(null));
+  }
+
+  /** Writes the whole set as a new snapshot, then truncates the log. */
+  private void compact() throws IOException {
+    long[] words;
+    synchronized (this) {
+      words = ids.toLongArray();
+    }
+    writeSnapshot(words);
+    // ids still in the log are in the snapshot as well, replaying them is harmless
+    log.truncate(0);
+    log.position(0);
+    log.force(true);
+    logEntries = 0;
+    System.out.printf("📒 Processed set compacted (%d books)%n", size());
+  }
+
+  private void writeSnapshot(long[] words) throws IOException {
+    Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(words.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.asLongBuffer().put(words);
+      while (buffer.hasRemaining()) out.write(buffer);
+      out.force(true);
+    }
+    Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // ---------------------- loading ----------------------
+
+  private void loadSnapshot() throws IOException {
+    if (!Files.exists(snapshotFile)) return;
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      ids.or(BitSet.valueOf(mapped.asLongBuffer()));
+    }
+  }
+
+  private void replayLog() throws IOException {
+    long size = log.size();
+    long complete = size - size % Integer.BYTES; // drop a torn last record
+    if (complete != size) log.truncate(complete);
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long position = 0;
+    while (position < complete) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), complete - position));
+      int n = log.read(buffer, position);
+      if (n <= 0) break;
+      buffer.flip();
+      while (buffer.remaining() >= Integer.BYTES) {
+        ids.set(buffer.getInt());
+        logEntries++;
+      }
+      position += n - buffer.remaining(); // a partial record is read again
+    }
+    log.position(complete);
+  }
+
+  private void migrateLegacy(Path textFile) throws IOException {
+    if (!Files.exists(textFile) || Files.exists(snapshotFile) || Files.exists(logFile)) return;
+
+    BitSet legacy = new BitSet();
+    for (String line : Files.readAllLines(textFile, StandardCharsets.UTF_8)) {
+      try {
+        int id = Integer.parseInt(line.trim());
+        if (id >= 0) legacy.set(id);
+      } catch (NumberFormatException ignored) {
+        // blank or broken line
+      }
+    }
+    writeSnapshot(legacy.toLongArray());
+    Files.move(textFile, textFile.resolveSibling(textFile.getFileName() + ".migrated"),
+        StandardCopyOption.REPLACE_EXISTING);
+    System.out.printf("📒 Migrated %d ids from %s%n", legacy.cardinality(), textFile);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writer.join(1_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.close();
+  }
+}
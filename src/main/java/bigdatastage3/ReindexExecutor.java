@@ -0,0 +1,207 @@
+package bigdatastage3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes the books of a reindex run on several threads of one container.
+ *
+ * While one thread tokenizes a book, others wait for their Mongo writes, so
+ * a container uses more than one core. At most twice the parallelism books
+ * are queued; the caller blocks beyond that, which keeps the reading cursor
+ * close to the indexing threads.
+ *
+ * Pausing is graceful: books already started finish, no new ones start until
+ * resume. Progress (books/sec, terms/sec) is logged periodically.
+ *
+ * Configuration (environment):
+ * - REINDEX_THREADS: indexing threads, defaults to the number of cores
+ */
+public class ReindexExecutor {
+
+  private static final long REPORT_INTERVAL_SEC = 10;
+
+  /** Indexes one book and returns the number of its distinct terms. */
+  @FunctionalInterface
+  public interface BookTask {
+    int run() throws Exception;
+  }
+
+  private final int parallelism;
+  private final ExecutorService pool;
+  private final Semaphore window;
+  private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "reindex-progress");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final Object pauseLock = new Object();
+  private volatile boolean paused;
+
+  private final AtomicLong books = new AtomicLong();
+  private final AtomicLong terms = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile long runStartedAt;
+  private volatile String runId;
+  private ScheduledFuture<?> report;
+  private long reportedBooks;
+  private long reportedTerms;
+  private long reportedAt;
+
+  public ReindexExecutor(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+    this.window = new Semaphore(2 * this.parallelism);
+    this.pool = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+      private int n;
+
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "reindex-" + n++);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public static ReindexExecutor fromEnv() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      threads = Integer.parseInt(System.getenv().getOrDefault("REINDEX_THREADS", String.valueOf(threads)));
+    } catch (NumberFormatException ignored) {
+      // keep the default
+    }
+    System.out.println("🧵 Reindex executor with " + Math.max(1, threads) + " threads");
+    return new ReindexExecutor(threads);
+  }
+
+  /** Resets the counters and starts the progress log. */
+  public synchronized void startRun(String runId) {
+    this.runId = runId;
+    books.set(0);
+    terms.set(0);
+    failed.set(0);
+    runStartedAt = reportedAt = System.currentTimeMillis();
+    reportedBooks = reportedTerms = 0;
+    report = reporter.scheduleAtFixedRate(this::logProgress, REPORT_INTERVAL_SEC, REPORT_INTERVAL_SEC,
+        TimeUnit.SECONDS);
+  }
+
+  public synchronized void finishRun() {
+    if (report == null) return;
+    report.cancel(false);
+    report = null;
+    Map<String, Object> stats = stats();
+    System.out.printf("📈 Reindex %s: %s books, %s terms, %s failed (%s books/s, %s terms/s)%n",
+        runId, stats.get("books"), stats.get("terms"), stats.get("failed"),
+        stats.get("books_per_sec"), stats.get("terms_per_sec"));
+  }
+
+  /**
+   * Queues a book, waiting at most the given time for room in the queue.
+   *
+   * @return false if there was no room, the caller should try again
+   */
+  public boolean trySubmit(int bookId, BookTask task, long timeoutMs) throws InterruptedException {
+    if (!window.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+      return false;
+    }
+    inFlight.incrementAndGet();
+    try {
+      pool.execute(() -> {
+        try {
+          awaitResume();
+          terms.addAndGet(task.run());
+          books.incrementAndGet();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Exception e) {
+          failed.incrementAndGet();
+          System.err.printf("⚠ Skipping book %d: %s%n", bookId, e.getMessage());
+        } finally {
+          synchronized (inFlight) {
+            inFlight.decrementAndGet();
+            inFlight.notifyAll();
+          }
+          window.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.decrementAndGet();
+      window.release();
+      throw e;
+    }
+    return true;
+  }
+
+  /** Waits at most the given time until every queued book is through. */
+  public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (inFlight) {
+      while (inFlight.get() > 0) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) return false;
+        inFlight.wait(left);
+      }
+    }
+    return true;
+  }
+
+  public void pause() {
+    paused = true;
+    System.out.println("⏸ Reindex paused, finishing books already started");
+  }
+
+  public void resume() {
+    synchronized (pauseLock) {
+      paused = false;
+      pauseLock.notifyAll();
+    }
+    System.out.println("▶ Reindex resumed");
+  }
+
+  public boolean isPaused() {
+    return paused;
+  }
+
+  public Map<String, Object> stats() {
+    double seconds = Math.max(0.001, (System.currentTimeMillis() - runStartedAt) / 1000.0);
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("run_id", runId);
+    stats.put("threads", parallelism);
+    stats.put("paused", paused);
+    stats.put("in_flight", inFlight.get());
+    stats.put("books", books.get());
+    stats.put("terms", terms.get());
+    stats.put("failed", failed.get());
+    stats.put("books_per_sec", Math.round(books.get() / seconds * 100) / 100.0);
+    stats.put("terms_per_sec", Math.round(terms.get() / seconds));
+    return stats;
+  }
+
+  // ---------------------- internals ----------------------
+
+  private void awaitResume() throws InterruptedException {
+    synchronized (pauseLock) {
+      while (paused) {
+        pauseLock.wait();
+      }
+    }
+  }
+
+  private synchronized void logProgress() {
+    long now = System.currentTimeMillis();
+    double seconds = Math.max(0.001, (now - reportedAt) / 1000.0);
+    long b = books.get();
+    long t = terms.get();
+    System.out.printf("📈 Reindex %s%s: %d books (%.1f books/s, %.0f terms/s now), %d failed, %d in flight%n",
+        runId, paused ? " (paused)" : "", b, (b - reportedBooks) / seconds, (t - reportedTerms) / seconds,
+        failed.get(), inFlight.get());
+    reportedBooks = b;
+    reportedTerms = t;
+    reportedAt = now;
+  }
+}
@@ -1,5 +1,6 @@
 package bigdatastage3;
 
+import com.mongodb.MongoCursorNotFoundException;
 import com.mongodb.client.*;
 import com.mongodb.client.model.*;
 import com.mongodb.client.result.UpdateResult;
@@ -9,92 +10,193 @@ import jakarta.jms.MessageListener;
 import jakarta.jms.TextMessage;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles full reindexing triggered by reindex.request events.
- * Supports multiple Indexer containers working in parallel using batch
- * claiming.
+ * Supports multiple Indexer containers working in parallel using range
+ * leases.
+ *
+ * A full run builds a new index generation while search keeps reading the
+ * active one. Once every range is done, the generation pointer is flipped
+ * atomically, search nodes are told through index.switched and the old
+ * generation is dropped after a grace period. An incremental run updates
+ * the active generation in place, a bulk run builds the new generation
+ * offline on one container.
+ *
+ * The container that wins the clear lock splits the id space of the books
+ * to index into contiguous ranges (reindex_leases). Every container leases
+ * one range at a time, marks its books with one update and streams them
+ * through a single projected cursor. A lease expires unless it is renewed,
+ * so the range of a crashed container is picked up by another one.
+ *
+ * Runs are executed on their own thread, not on the JMS listener thread, and
+ * the books of a range are indexed in parallel by the {@link ReindexExecutor}.
+ *
+ * Configuration (environment):
+ * - REINDEX_RANGE_SIZE: book ids per range
+ * - REINDEX_LEASE_SEC: lease duration, renewed while the range is processed
+ * - REINDEX_BATCH_SIZE: cursor batch size
+ * - REINDEX_DROP_DELAY_SEC: how long the previous generation is kept after the switch; search
+ *   nodes that missed index.switched notice within SEARCH_GENERATION_CHECK_SEC
+ * - REINDEX_BULK_MEMORY_MB, REINDEX_BULK_TMP_DIR: see {@link BulkIndexBuilder}
  */
 public class ReindexingWorker implements MessageListener {
 
-  private static final int BATCH_SIZE = 5;
+  static final String LEASES = "reindex_leases";
+
   private static final long LOCK_WAIT_MS = 500;
   private static final Duration LOCK_TIMEOUT = Duration.ofMinutes(5);
 
+  private static final int RANGE_SIZE = envInt("REINDEX_RANGE_SIZE", 1000);
+  private static final long LEASE_MS = envInt("REINDEX_LEASE_SEC", 120) * 1000L;
+  private static final int BATCH_SIZE = envInt("REINDEX_BATCH_SIZE", 100);
+  private static final long DROP_DELAY_SEC = envInt("REINDEX_DROP_DELAY_SEC", 60);
+  private static final long RANGE_WAIT_MS = 2_000;
+
   private final MongoCollection<Document> booksCollection;
   private final MongoDatabase indexDb;
+  private final ContentStore contentStore;
+  private final MongoCollection<Document> leases;
+  private final IndexGenerations generations;
+  private final MessageBroker broker;
+  private final BulkIndexBuilder bulkBuilder;
+  private final String owner = workerName();
+  private final ReindexExecutor executor;
+  private final BookLeases bookLeases;
+  private final ExecutorService runs = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "reindex-run");
+    t.setDaemon(true);
+    return t;
+  });
 
   public ReindexingWorker(MongoCollection<Document> booksCollection,
-      MongoDatabase indexDb) {
+      MongoDatabase indexDb, ContentStore contentStore, ReindexExecutor executor, MessageBroker broker,
+      BookLeases bookLeases) {
     this.booksCollection = booksCollection;
     this.indexDb = indexDb;
+    this.contentStore = contentStore;
+    this.executor = executor;
+    this.bookLeases = bookLeases;
+    this.leases = indexDb.getCollection(LEASES);
+    this.generations = new IndexGenerations(indexDb);
+    this.broker = broker;
+    this.bulkBuilder = BulkIndexBuilder.fromEnv(booksCollection, indexDb, contentStore, generations);
   }
 
+  /**
+   * Hands the run to the run thread, so the session keeps delivering other
+   * messages (new books, pause/resume) while the reindex is going on.
+   */
   @Override
   public void onMessage(Message message) {
-
+    Map<?, ?> payload;
     try {
       String json = ((TextMessage) message).getText();
-      Map<?, ?> payload = new com.google.gson.Gson().fromJson(json, Map.class);
+      payload = new com.google.gson.Gson().fromJson(json, Map.class);
+    } catch (Exception e) {
+      System.err.println("⚠ Invalid reindex message: " + e.getMessage());
+      return;
+    }
 
-      if (payload == null || !payload.containsKey("runId")) {
-        System.err.println("⚠ Invalid reindex message payload");
-        return;
-      }
+    if (payload == null || !payload.containsKey("runId")) {
+      System.err.println("⚠ Invalid reindex message payload");
+      return;
+    }
+    runs.execute(() -> reindex(payload));
+  }
 
+  private void reindex(Map<?, ?> payload) {
+    try {
       long startTime = System.currentTimeMillis();
 
-      // 1️⃣ Acquire global clear lock
+      // 1️⃣ Acquire global run lock, the winner prepares the run
       String runId = payload.get("runId").toString();
-      System.out.println("🔄 Reindex request received (runId: " + runId + ")");
-      acquireClearLock(runId);
+      String mode = payload.get("mode") == null ? "full" : payload.get("mode").toString();
+      boolean incremental = "incremental".equals(mode);
+      System.out.println("🔄 Reindex request received (runId: " + runId + ", mode: " + mode + ")");
+      if ("bulk".equals(mode)) {
+        reindexBulk(runId);
+        return;
+      }
+      int generation = acquireRunLock(runId, incremental);
+      executor.startRun(runId);
 
-      // 2️⃣ Reindex in batches
+      // 2️⃣ Reindex range by range, until every range of the run is done
       int totalIndexed = 0;
+      int ranges = 0;
 
       while (true) {
-        // Atomar BATCH claimen
-        List<Document> batch = claimBatch();
-        if (batch.isEmpty())
-          break;
-
-        for (Document doc : batch) {
-          Integer id = doc.getInteger("id");
-          String content = doc.getString("content");
-
-          if (id != null && content != null && !content.isBlank()) {
-            // Core indexing
-            IndexAPI.processBook(id, content);
+        Document lease = leaseRange(runId);
+        if (lease == null) {
+          if (leases.countDocuments(Filters.and(Filters.eq("runId", runId), Filters.ne("status", "DONE"))) == 0) {
+            break;
           }
+          Thread.sleep(RANGE_WAIT_MS); // others are still busy, or a lease has not expired yet
+          continue;
         }
+        int indexed = indexRange(lease, generation);
+        totalIndexed += indexed;
+        ranges++;
+        System.out.printf("📦 Indexed range [%d, %d): %d books (total indexed: %d)%n",
+            lease.getInteger("start"), lease.getInteger("end"), indexed, totalIndexed);
+      }
 
-        totalIndexed += batch.size();
-        System.out.printf("📦 Indexed batch of %d books (total indexed: %d)%n",
-            batch.size(), totalIndexed);
+      // 3️⃣ Switch search to the new generation (only one container succeeds)
+      if (!incremental) {
+        switchGeneration(runId, generation);
       }
 
       long endTime = System.currentTimeMillis();
-      System.out.printf("✅ Reindex completed successfully (%d books indexed) in %.2f s%n",
-          totalIndexed, (endTime - startTime) / 1000.0);
+      System.out.printf("✅ Reindex completed successfully (%d books in %d ranges indexed) in %.2f s%n",
+          totalIndexed, ranges, (endTime - startTime) / 1000.0);
 
     } catch (Exception e) {
       System.err.println("❌ Reindex failed");
       e.printStackTrace();
+    } finally {
+      executor.finishRun();
+    }
+  }
+
+  /** reindex.control: pause or resume the books of the current run. */
+  public void onControl(Message message) {
+    try {
+      Map<?, ?> payload = new com.google.gson.Gson().fromJson(((TextMessage) message).getText(), Map.class);
+      Object action = payload == null ? null : payload.get("action");
+      if ("pause".equals(action)) {
+        executor.pause();
+      } else if ("resume".equals(action)) {
+        executor.resume();
+      } else {
+        System.err.println("⚠ Unknown reindex control action: " + action);
+      }
+    } catch (Exception e) {
+      System.err.println("⚠ Invalid reindex control message: " + e.getMessage());
     }
   }
 
   // ---------------------- helper methods ----------------------
 
   /**
-   * Acquire lock for clearing all index collections.
-   * Only one container should actually clear the index.
+   * Acquire the lock for preparing the run. Only one container starts the
+   * new generation, resets the books and creates the leases. An incremental
+   * run keeps the active generation and only resets the books whose content
+   * changed.
+   *
+   * @return the generation the run writes to
    */
-  private void acquireClearLock(String runId) throws Exception {
+  private int acquireRunLock(String runId, boolean incremental) throws Exception {
     MongoCollection<Document> lockCol = indexDb.getCollection("reindex_lock");
 
     while (true) {
@@ -110,18 +212,29 @@ public class ReindexingWorker implements MessageListener {
               .upsert(true)
               .returnDocument(ReturnDocument.BEFORE));
 
-      // 🟢 Wir sind der erste → clear durchführen
+      // 🟢 Wir sind der erste → Lauf vorbereiten
       if (claimed == null) {
         try {
-          System.out.println("🔐 Acquired reindex clear lock, clearing index...");
-          clearIndex();
-          resetIndexStatusForAllBooks();
+          int generation;
+          if (incremental) {
+            System.out.println("🔐 Acquired reindex lock, looking for changed books...");
+            generation = generations.active();
+            resetIndexStatusForChangedBooks();
+          } else {
+            System.out.println("🔐 Acquired reindex lock, starting a new index generation...");
+            generation = generations.startBuild(runId, false);
+            resetIndexStatusForAllBooks();
+          }
+          createLeases(runId);
 
           lockCol.updateOne(
               Filters.eq("_id", runId),
-              Updates.set("status", "DONE"));
+              Updates.combine(
+                  Updates.set("status", "DONE"),
+                  Updates.set("generation", generation)));
 
-          System.out.println("🧹 Index cleared for reindex run " + runId);
+          System.out.println("🧹 Reindex run " + runId + " prepared, writing to generation " + generation);
+          return generation;
         } catch (Exception e) {
           // wichtig: Lock freigeben oder markieren
           lockCol.updateOne(
@@ -129,7 +242,6 @@ public class ReindexingWorker implements MessageListener {
               Updates.set("status", "ERROR"));
           throw e;
         }
-        return;
       }
 
       // 🔴 Wir sind NICHT der erste → warten
@@ -140,14 +252,14 @@ public class ReindexingWorker implements MessageListener {
         System.out.println("⏳ Waiting for reindex lock (status: " + status + ")");
 
         if ("DONE".equals(status)) {
-          return; // ✅ Index ist sauber
+          return current.getInteger("generation", 0); // ✅ Lauf ist vorbereitet
         }
 
         // ⏱ Lock-Timeout
         if (createdAt != null &&
             now - createdAt.getTime() > LOCK_TIMEOUT.toMillis()) {
 
-          System.err.println("⚠️ Clear lock expired, retrying");
+          System.err.println("⚠️ Reindex lock expired, retrying");
           lockCol.deleteOne(Filters.eq("_id", runId));
         }
       }
@@ -157,58 +269,263 @@ public class ReindexingWorker implements MessageListener {
   }
 
   /**
-   * Atomar BATCH von Büchern claimen, die noch nicht indexiert sind.
+   * Bulk mode: the container that gets the lock builds the whole generation
+   * with the {@link BulkIndexBuilder}, the others have nothing to do.
    */
-  private List<Document> claimBatch() {
-    List<Document> batch = new ArrayList<>();
-
-    for (int i = 0; i < BATCH_SIZE; i++) {
-      Document claimed = booksCollection.findOneAndUpdate(
-          Filters.or(
-              Filters.exists("indexStatus", false),
-              Filters.eq("indexStatus", "NEW")),
+  private void reindexBulk(String runId) throws IOException {
+    MongoCollection<Document> lockCol = indexDb.getCollection("reindex_lock");
+    Document claimed = lockCol.findOneAndUpdate(
+        Filters.eq("_id", runId),
+        Updates.combine(
+            Updates.setOnInsert("createdAt", new Date()),
+            Updates.setOnInsert("status", "LOCKED"),
+            Updates.setOnInsert("mode", "bulk")),
+        new FindOneAndUpdateOptions()
+            .upsert(true)
+            .returnDocument(ReturnDocument.BEFORE));
+    if (claimed != null) {
+      System.out.println("ℹ Bulk reindex " + runId + " runs on another indexer");
+      return;
+    }
+
+    try {
+      int generation = generations.startBuild(runId, true);
+      Map<String, Object> report = bulkBuilder.build(generation);
+      switchGeneration(runId, generation);
+      lockCol.updateOne(
+          Filters.eq("_id", runId),
           Updates.combine(
-              Updates.set("indexStatus", "INDEXING"),
-              Updates.set("indexStartedAt", new Date())),
-          new FindOneAndUpdateOptions()
-              .sort(Sorts.ascending("id")) // 🔑 wichtig!
-              .returnDocument(ReturnDocument.AFTER));
+              Updates.set("status", "DONE"),
+              Updates.set("generation", generation),
+              Updates.set("report", new Document(report))));
+    } catch (IOException | RuntimeException e) {
+      lockCol.updateOne(Filters.eq("_id", runId), Updates.set("status", "ERROR"));
+      throw e;
+    }
+  }
 
-      if (claimed == null) {
-        break; // nichts mehr zu holen
-      }
+  /**
+   * Split the ids of all books waiting for indexing into ranges of
+   * RANGE_SIZE. Leases of earlier runs are removed.
+   */
+  private void createLeases(String runId) {
+    leases.deleteMany(Filters.ne("runId", runId));
+
+    Bson waiting = Filters.eq("indexStatus", "NEW");
+    Document first = booksCollection.find(waiting).projection(Projections.include("id"))
+        .sort(Sorts.ascending("id")).first();
+    Document last = booksCollection.find(waiting).projection(Projections.include("id"))
+        .sort(Sorts.descending("id")).first();
+    if (first == null || last == null) {
+      System.out.println("📭 No books to reindex");
+      return;
+    }
 
-      batch.add(claimed);
+    int minId = first.getInteger("id");
+    int maxId = last.getInteger("id");
+    List<Document> ranges = new ArrayList<>();
+    for (long start = minId; start <= maxId; start += RANGE_SIZE) {
+      int end = (int) Math.min(Integer.MAX_VALUE, start + RANGE_SIZE);
+      ranges.add(new Document("_id", runId + ":" + start)
+          .append("runId", runId)
+          .append("start", (int) start)
+          .append("end", end)
+          .append("status", "FREE")
+          .append("leaseUntil", new Date(0)));
     }
+    leases.insertMany(ranges, new InsertManyOptions().ordered(false));
+    System.out.printf("🗂 Created %d ranges of %d ids for books %d..%d%n", ranges.size(), RANGE_SIZE, minId, maxId);
+  }
 
-    return batch;
+  /**
+   * Lease the next free range, or one whose lease expired.
+   *
+   * @return the lease, null when every range is done or leased by others
+   */
+  private Document leaseRange(String runId) {
+    Date now = new Date();
+    return leases.findOneAndUpdate(
+        Filters.and(
+            Filters.eq("runId", runId),
+            Filters.in("status", "FREE", "LEASED"),
+            Filters.lt("leaseUntil", now)),
+        Updates.combine(
+            Updates.set("status", "LEASED"),
+            Updates.set("owner", owner),
+            Updates.set("leaseUntil", new Date(now.getTime() + LEASE_MS))),
+        new FindOneAndUpdateOptions()
+            .sort(Sorts.ascending("start"))
+            .returnDocument(ReturnDocument.AFTER));
   }
 
   /**
-   * Delete all single-letter index collections (a–z).
+   * Index all books of a leased range. The books are marked with the lease
+   * in one update and then read through one cursor; a takeover of an expired
+   * lease continues with the books that are still marked.
+   *
+   * @return the number of books handed to the executor
    */
-  private void clearIndex() {
-    Set<String> collections = indexDb.listCollectionNames().into(new HashSet<>());
+  private int indexRange(Document lease, int generation) throws InterruptedException {
+    String leaseId = lease.getString("_id");
+    Bson range = Filters.and(
+        Filters.gte("id", lease.getInteger("start")),
+        Filters.lt("id", lease.getInteger("end")));
+
+    booksCollection.updateMany(
+        Filters.and(range, Filters.eq("indexStatus", "NEW")),
+        Updates.combine(
+            Updates.set("indexStatus", "INDEXING"),
+            Updates.set("indexStartedAt", new Date()),
+            Updates.set("indexLease", leaseId)));
+
+    int submitted = 0;
+    int lastId = Integer.MIN_VALUE;
+    long renewAt = System.currentTimeMillis() + LEASE_MS / 2;
+    boolean more = true;
+    while (more) {
+      // a long pause can outlive the server cursor, it is then reopened behind the last book
+      try (MongoCursor<Document> cursor = booksCollection
+          .find(Filters.and(range, Filters.gt("id", lastId),
+              Filters.eq("indexStatus", "INDEXING"), Filters.eq("indexLease", leaseId)))
+          .projection(Projections.include("id", "contentHash")) // content comes from book_contents
+          .sort(Sorts.ascending("id"))
+          .batchSize(BATCH_SIZE)
+          .iterator()) {
+
+        while (cursor.hasNext()) {
+          Document doc = cursor.next();
+          Integer id = doc.getInteger("id");
+          if (id == null) continue;
+          lastId = id;
+
+          String fingerprint = doc.getString("contentHash");
+          ReindexExecutor.BookTask task = () -> {
+            if (!bookLeases.claimInRange(id, leaseId)) {
+              return 0; // requeued by the lease sweeper meanwhile
+            }
+            bookLeases.track(id);
+            try {
+              int[] terms = { 0 };
+              IndexAPI.processStored(id, contentStore, fingerprint, generation, count -> terms[0] = count);
+              return terms[0];
+            } catch (Exception e) {
+              bookLeases.failed(id, e.getMessage());
+              throw e;
+            } finally {
+              bookLeases.untrack(id);
+            }
+          };
+          while (!executor.trySubmit(id, task, 1_000)) {
+            if (!keepLease(leaseId, renewAt)) return submitted;
+            renewAt = Math.max(renewAt, System.currentTimeMillis() + LEASE_MS / 2);
+          }
+          submitted++;
 
-    for (String name : collections) {
-      if (name.length() == 1 && Character.isLetter(name.charAt(0))) {
-        indexDb.getCollection(name).deleteMany(new Document());
+          if (System.currentTimeMillis() >= renewAt) {
+            if (!keepLease(leaseId, renewAt)) return submitted;
+            renewAt = System.currentTimeMillis() + LEASE_MS / 2;
+          }
+        }
+        more = false;
+      } catch (MongoCursorNotFoundException e) {
+        System.out.println("🔁 Cursor of lease " + leaseId + " expired, reopening after book " + lastId);
       }
     }
 
-    System.out.println("🧹 Inverted index cleared");
+    // the lease is done only once its books are through
+    while (!executor.awaitIdle(1_000)) {
+      if (!keepLease(leaseId, renewAt)) return submitted;
+      renewAt = Math.max(renewAt, System.currentTimeMillis() + LEASE_MS / 2);
+    }
+
+    leases.updateOne(Filters.and(Filters.eq("_id", leaseId), Filters.eq("owner", owner)),
+        Updates.set("status", "DONE"));
+    return submitted;
+  }
+
+  /** Renews the lease once it is due; false if another container took it over. */
+  private boolean keepLease(String leaseId, long renewAt) {
+    if (System.currentTimeMillis() < renewAt) return true;
+    if (renewLease(leaseId)) return true;
+    System.err.println("⚠ Lost lease " + leaseId + ", leaving the rest to its new owner");
+    return false;
+  }
+
+  private boolean renewLease(String leaseId) {
+    return leases.updateOne(
+        Filters.and(Filters.eq("_id", leaseId), Filters.eq("owner", owner), Filters.eq("status", "LEASED")),
+        Updates.set("leaseUntil", new Date(System.currentTimeMillis() + LEASE_MS)))
+        .getMatchedCount() == 1;
+  }
+
+  /**
+   * Flip the generation pointer, tell the search nodes and drop the old
+   * generation once requests that still read it are through.
+   */
+  private void switchGeneration(String runId, int generation) {
+    int previous = generations.activate(runId, generation);
+    if (previous < 0) {
+      return; // another container switched already
+    }
+    try {
+      broker.sendIndexSwitched(generation);
+    } catch (Exception e) {
+      System.err.println("⚠ Failed to announce index generation " + generation + ": " + e.getMessage());
+    }
+    CompletableFuture.runAsync(() -> {
+      try {
+        generations.drop(previous);
+      } catch (Exception e) {
+        System.err.println("⚠ Dropping index generation " + previous + " failed: " + e.getMessage());
+      }
+    }, CompletableFuture.delayedExecutor(DROP_DELAY_SEC, TimeUnit.SECONDS));
   }
 
   private void resetIndexStatusForAllBooks() {
     UpdateResult result = booksCollection.updateMany(
-        new Document(), // alle Bücher
+        Filters.ne("ingestStatus", "DELETED"), // alle Bücher außer gelöschten
         Updates.combine(
             Updates.set("indexStatus", "NEW"),
+            Updates.unset("indexedHash"), // the new generation is empty
             Updates.unset("indexStartedAt"),
-            Updates.unset("indexError")));
+            BookLeases.cleared())); // workers still on a book must not mark it DONE afterwards
 
     System.out.printf("🔁 Reset indexStatus to NEW for %d books%n",
         result.getModifiedCount());
   }
 
+  /**
+   * Only books whose indexed fingerprint differs from the stored content
+   * fingerprint (or that were never indexed) are reindexed. The comparison
+   * runs in MongoDB, no content is loaded.
+   */
+  private void resetIndexStatusForChangedBooks() {
+    UpdateResult result = booksCollection.updateMany(
+        Filters.and(
+            Filters.eq("ingestStatus", "DONE"),
+            Filters.or(
+                Filters.exists("indexedHash", false),
+                Filters.expr(new Document("$ne", List.of("$indexedHash", "$contentHash"))),
+                Filters.ne("indexStatus", "DONE"))),
+        Updates.combine(
+            Updates.set("indexStatus", "NEW"),
+            Updates.unset("indexStartedAt"),
+            BookLeases.cleared()));
+
+    System.out.printf("🔁 %d changed or unindexed books set to NEW%n",
+        result.getModifiedCount());
+  }
+
+  private static String workerName() {
+    String host = System.getenv().getOrDefault("HOSTNAME", "indexer");
+    return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+  }
+
+  private static int envInt(String key, int def) {
+    try {
+      return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)));
+    } catch (Exception e) {
+      return def;
+    }
+  }
 }
@@ -0,0 +1,66 @@
+package bigdatastage3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits retries to a share of the traffic instead of a fixed count per call.
+ *
+ * Every request deposits {@code ratio} tokens, every retry withdraws one.
+ * On top of that {@code minPerSecond} retries are always allowed, so a quiet
+ * service can still retry. When the upstream is down, retries stay at about
+ * ratio * requests and cannot multiply the load.
+ */
+public class RetryBudget {
+
+  private final double ratio;
+  private final int minPerSecond;
+  private final double maxBalance;
+
+  private double balance;
+  private long second;
+  private int minUsed;
+  private long granted;
+  private long denied;
+
+  public RetryBudget(double ratio, int minPerSecond) {
+    this.ratio = ratio;
+    this.minPerSecond = minPerSecond;
+    this.maxBalance = Math.max(1, ratio * 1_000);
+  }
+
+  public synchronized void onRequest() {
+    balance = Math.min(maxBalance, balance + ratio);
+  }
+
+  /** @return true if a retry may be sent now */
+  public synchronized boolean tryRetry() {
+    long now = System.currentTimeMillis() / 1_000;
+    if (now != second) {
+      second = now;
+      minUsed = 0;
+    }
+    if (minUsed < minPerSecond) {
+      minUsed++;
+      granted++;
+      return true;
+    }
+    if (balance >= 1) {
+      balance -= 1;
+      granted++;
+      return true;
+    }
+    denied++;
+    return false;
+  }
+
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("ratio", ratio);
+    stats.put("min_per_second", minPerSecond);
+    stats.put("balance", Math.round(balance * 100) / 100.0);
+    stats.put("granted", granted);
+    stats.put("denied", denied);
+    return stats;
+  }
+}
@@ -0,0 +1,107 @@
+package bigdatastage3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Delayed retries of failed ingests.
+ *
+ * The n-th attempt waits base * 2^(n-1), capped at the maximum, with equal
+ * jitter (half fixed, half random) so that books which failed together do not
+ * retry together. A book is retried at most once at a time; after the last
+ * attempt it stays FAILED until someone ingests it again.
+ *
+ * Configuration (environment):
+ * - INGEST_RETRY_MAX_ATTEMPTS, INGEST_RETRY_BASE_MS, INGEST_RETRY_MAX_MS
+ */
+public class RetryScheduler {
+
+  public static final long GAVE_UP = -1;
+  public static final long ALREADY_PENDING = -2;
+
+  private final int maxAttempts;
+  private final long baseMs;
+  private final long maxMs;
+  private final Executor executor;
+  private final IntConsumer retry;
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "ingest-retry");
+    t.setDaemon(true);
+    return t;
+  });
+  private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong scheduled = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong gaveUp = new AtomicLong();
+
+  /**
+   * @param executor runs the retries, the timer thread only hands them over
+   * @param retry    ingests the book again
+   */
+  public RetryScheduler(int maxAttempts, long baseMs, long maxMs, Executor executor, IntConsumer retry) {
+    this.maxAttempts = maxAttempts;
+    this.baseMs = baseMs;
+    this.maxMs = maxMs;
+    this.executor = executor;
+    this.retry = retry;
+  }
+
+  public static RetryScheduler fromEnv(Executor executor, IntConsumer retry) {
+    Map<String, String> env = System.getenv();
+    return new RetryScheduler(
+        Integer.parseInt(env.getOrDefault("INGEST_RETRY_MAX_ATTEMPTS", "5")),
+        Long.parseLong(env.getOrDefault("INGEST_RETRY_BASE_MS", "2000")),
+        Long.parseLong(env.getOrDefault("INGEST_RETRY_MAX_MS", "300000")),
+        executor, retry);
+  }
+
+  /**
+   * Schedules the next attempt after the given number of failed ones.
+   *
+   * @return the delay in ms, {@link #GAVE_UP} if the book is out of attempts
+   *         or {@link #ALREADY_PENDING} if a retry is already waiting
+   */
+  public long schedule(int bookId, int failedAttempts) {
+    if (failedAttempts >= maxAttempts) {
+      gaveUp.incrementAndGet();
+      System.err.printf("🛑 Giving up on book %d after %d attempts%n", bookId, failedAttempts);
+      return GAVE_UP;
+    }
+    if (!pending.add(bookId)) {
+      return ALREADY_PENDING;
+    }
+
+    long delay = backoff(failedAttempts);
+    scheduled.incrementAndGet();
+    timer.schedule(() -> executor.execute(() -> {
+      pending.remove(bookId);
+      retried.incrementAndGet();
+      retry.accept(bookId);
+    }), delay, TimeUnit.MILLISECONDS);
+    System.out.printf("🔁 Retrying book %d in %d ms (attempt %d of %d)%n",
+        bookId, delay, failedAttempts + 1, maxAttempts);
+    return delay;
+  }
+
+  long backoff(int failedAttempts) {
+    int exponent = Math.min(Math.max(0, failedAttempts - 1), 30);
+    long delay = Math.min(maxMs, baseMs << exponent);
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("pending", pending.size());
+    stats.put("scheduled", scheduled.get());
+    stats.put("retried", retried.get());
+    stats.put("gave_up", gaveUp.get());
+    stats.put("max_attempts", maxAttempts);
+    return stats;
+  }
+}
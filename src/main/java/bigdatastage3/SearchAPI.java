@@ -7,11 +7,16 @@ import com.mongodb.client.model.Projections;
 import com.mongodb.client.MongoCursor;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import jakarta.jms.JMSException;
+import jakarta.jms.TextMessage;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 import java.io.FileNotFoundException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -21,6 +26,19 @@ public class SearchAPI {
   private static MongoCollection<Document> booksCollection;
   private static MongoDatabase indexDb;
   private static MongoDatabase[] databases;
+  private static SnippetStore snippetStore;
+  private static IndexGenerations generations;
+  // index generation queries read; switched after a full reindex
+  private static volatile int generation;
+  private static FacetIndex facetIndex;
+  private static final TermDictionary dictionary = new TermDictionary();
+  private static final Analyzer analyzer = Analyzer.fromEnv();
+
+  private static final int MAX_WILDCARD_EXPANSIONS = envInt("SEARCH_WILDCARD_MAX_EXPANSIONS", 64);
+  private static final int MAX_FUZZY_EXPANSIONS = envInt("SEARCH_FUZZY_MAX_EXPANSIONS", 8);
+  private static final int DEFAULT_SUGGEST_LIMIT = 10;
+  private static final int DEFAULT_SNIPPET_PAGE_SIZE = 10;
+  private static final int DEFAULT_FACET_LIMIT = 10;
 
   public static void main(String[] args) {
 
@@ -35,6 +53,11 @@ public class SearchAPI {
 
     booksCollection = databases[0].getCollection("books");
     indexDb = databases[1];
+    snippetStore = new SnippetStore(indexDb);
+    generations = new IndexGenerations(indexDb);
+    facetIndex = new FacetIndex(booksCollection);
+
+    initInMemoryIndexes();
 
     // Create Javalin server
     Javalin app = Javalin.create(config -> {
@@ -53,13 +76,144 @@ public class SearchAPI {
       Map<String, Object> status = Map.of(
           "service", "search-service",
           "status", "running",
-          "database", "connected");
+          "database", "connected",
+          "index_generation", generation);
       ctx.result(gson.toJson(status));
     });
 
     // Main search endpoint: GET
-    // /search?q={term}&author={name}&language={code}&year={YYYY}
+    // /search?q={term}&author={name}&language={code}&year={YYYY}&fuzzy={true|false}
+    //   &offset={n}&limit={n}&snippets={true|false}&facets={true|false}&facet_limit={n}
     app.get("/search", SearchAPI::handleSearch);
+
+    // Autocompletion: GET /search/suggest?prefix={prefix}&limit={n}
+    app.get("/search/suggest", SearchAPI::handleSuggest);
+  }
+
+  /*
+   * Loads the term dictionary and the facet bitmaps and keeps them current:
+   * every document.indexed event brings the new terms and the id of a book
+   * whose metadata has to be refreshed, a periodic full reload catches
+   * everything else (reindex runs, missed events). index.switched moves
+   * queries to the generation a full reindex just built; the generation
+   * pointer is also re-read every few seconds, so a node that missed the
+   * event switches well before the old generation is dropped.
+   */
+  private static void initInMemoryIndexes() {
+    generation = generations.active();
+    dictionary.useGeneration(generation);
+    dictionary.rebuild(indexDb, generation);
+    facetIndex.rebuild();
+
+    try {
+      MessageBroker broker = new MessageBroker();
+      broker.subscribeTopic(MessageBroker.TOPIC_DOC_INDEXED, message -> {
+        try {
+          Map<?, ?> payload = gson.fromJson(((TextMessage) message).getText(), Map.class);
+          if (payload == null) return;
+          if (payload.get("bookId") instanceof Number bookId) {
+            facetIndex.refresh(bookId.intValue());
+          }
+          if (Boolean.TRUE.equals(payload.get("newTermsTruncated"))) {
+            dictionary.rebuild(indexDb, generation);
+          } else if (payload.get("newTerms") instanceof List<?> terms) {
+            dictionary.addAll(terms.stream().map(Object::toString).collect(Collectors.toList()));
+          }
+        } catch (Exception e) {
+          System.err.println("Failed to apply document.indexed event: " + e.getMessage());
+        }
+      });
+      broker.subscribeTopic(MessageBroker.TOPIC_INDEX_SWITCHED, message -> {
+        try {
+          Map<?, ?> payload = gson.fromJson(((TextMessage) message).getText(), Map.class);
+          if (payload != null && payload.get("generation") instanceof Number next) {
+            switchGeneration(next.intValue());
+          }
+        } catch (Exception e) {
+          System.err.println("Failed to apply index.switched event: " + e.getMessage());
+        }
+      });
+    } catch (JMSException e) {
+      System.err.println("Term dictionary and facets will only refresh periodically, broker unavailable: "
+          + e.getMessage());
+    }
+
+    long refreshSec = envInt("SEARCH_DICT_REFRESH_SEC", 600);
+    // two threads, so a long dictionary reload does not hold up the generation check
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+      Thread t = new Thread(r, "in-memory-index-refresh");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        int active = generations.active();
+        if (active != generation) {
+          switchGeneration(active);
+        } else {
+          dictionary.rebuild(indexDb, generation);
+        }
+        facetIndex.rebuild();
+      } catch (Exception e) {
+        System.err.println("In-memory index refresh failed: " + e.getMessage());
+      }
+    }, refreshSec, refreshSec, TimeUnit.SECONDS);
+
+    // one small read; must stay well below REINDEX_DROP_DELAY_SEC
+    long checkSec = Math.max(1, envInt("SEARCH_GENERATION_CHECK_SEC", 5));
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        int active = generations.active();
+        if (active != generation) {
+          System.out.println("Missed index.switched, generation " + active + " is active");
+          switchGeneration(active);
+        }
+      } catch (Exception e) {
+        System.err.println("Index generation check failed: " + e.getMessage());
+      }
+    }, checkSec, checkSec, TimeUnit.SECONDS);
+  }
+
+  /*
+   * The dictionary is rebuilt from the new generation before queries move to
+   * it. Rebuilds of the old generation still running are discarded.
+   */
+  private static synchronized void switchGeneration(int next) {
+    if (next == generation) return;
+    dictionary.useGeneration(next);
+    dictionary.rebuild(indexDb, next);
+    int previous = generation;
+    generation = next;
+    System.out.println("Switched search to index generation " + next + " (was " + previous + ")");
+  }
+
+  private static void handleSuggest(Context ctx) {
+    String prefix = ctx.queryParam("prefix");
+    if (prefix == null || prefix.trim().isEmpty()) {
+      ctx.status(400).result(gson.toJson(Map.of(
+          "error", "Query parameter 'prefix' is required.")));
+      return;
+    }
+
+    int limit = DEFAULT_SUGGEST_LIMIT;
+    try {
+      if (ctx.queryParam("limit") != null) {
+        limit = Math.min(Integer.parseInt(ctx.queryParam("limit")), 100);
+      }
+    } catch (NumberFormatException e) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Parameter 'limit' must be a number.")));
+      return;
+    }
+
+    long start = System.nanoTime();
+    List<String> suggestions = dictionary.complete(analyzer.normalize(prefix), limit);
+    long tookMicros = (System.nanoTime() - start) / 1000;
+
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("prefix", prefix);
+    response.put("suggestions", suggestions);
+    response.put("took_us", tookMicros);
+    ctx.result(gson.toJson(response));
   }
 
   private static void handleSearch(Context ctx) {
@@ -69,6 +223,24 @@ public class SearchAPI {
       String author = ctx.queryParam("author");
       String language = ctx.queryParam("language");
       String yearStr = ctx.queryParam("year");
+      boolean fuzzy = !"false".equalsIgnoreCase(ctx.queryParam("fuzzy"));
+      boolean snippets = "true".equalsIgnoreCase(ctx.queryParam("snippets"));
+      boolean facets = "true".equalsIgnoreCase(ctx.queryParam("facets"));
+      int offset;
+      int limit;
+      int facetLimit;
+      try {
+        facetLimit = Math.max(0, Integer.parseInt(Objects.requireNonNullElse(ctx.queryParam("facet_limit"),
+            String.valueOf(DEFAULT_FACET_LIMIT))));
+        offset = Math.max(0, Integer.parseInt(Objects.requireNonNullElse(ctx.queryParam("offset"), "0")));
+        // Without snippets all results are returned, as before
+        String defaultLimit = snippets ? String.valueOf(DEFAULT_SNIPPET_PAGE_SIZE) : String.valueOf(Integer.MAX_VALUE);
+        limit = Math.max(0, Integer.parseInt(Objects.requireNonNullElse(ctx.queryParam("limit"), defaultLimit)));
+      } catch (NumberFormatException e) {
+        ctx.status(400).result(gson.toJson(Map.of(
+            "error", "Parameters 'offset', 'limit' and 'facet_limit' must be numbers.")));
+        return;
+      }
 
       // Log the request
       System.out.println("New search request: " + ctx.fullUrl());
@@ -82,10 +254,13 @@ public class SearchAPI {
       }
 
       // Search for books containing the search term(s)
-      List<Integer> bookIdsFromIndex = searchTerm(query);
+      QueryTrace trace = new QueryTrace();
+      List<Integer> bookIdsFromIndex = searchTerm(query, fuzzy, trace);
 
       if (bookIdsFromIndex.isEmpty()) {
-        ctx.result(gson.toJson(createEmptyResponse(query, author, language, yearStr)));
+        Map<String, Object> response = createEmptyResponse(query, author, language, yearStr);
+        if (!trace.corrections.isEmpty()) response.put("corrections", trace.corrections);
+        ctx.result(gson.toJson(response));
         System.out.println("Request successfully completed. No results found.");
         return;
       }
@@ -93,11 +268,32 @@ public class SearchAPI {
       // Apply metadata filters
       List<Integer> filteredBookIds = applyMetadataFilters(bookIdsFromIndex, author, language, yearStr);
 
+      // Only the requested page is fetched (and gets snippets)
+      List<Integer> sortedIds = new ArrayList<>(filteredBookIds);
+      Collections.sort(sortedIds);
+      List<Integer> pageIds = sortedIds.subList(Math.min(offset, sortedIds.size()),
+          (int) Math.min((long) offset + limit, sortedIds.size()));
+
       // Fetch book details
-      List<Map<String, Object>> results = fetchBookDetails(filteredBookIds);
+      List<Map<String, Object>> results = fetchBookDetails(pageIds);
+      results.sort(Comparator.comparingInt(r -> (Integer) r.get("book_id")));
+
+      if (snippets) {
+        Map<Integer, String> bookSnippets = snippetStore.snippets(pageIds, trace.matchedTerms, analyzer);
+        for (Map<String, Object> result : results) {
+          result.put("snippet", bookSnippets.get((Integer) result.get("book_id")));
+        }
+      }
 
       // Build response
       Map<String, Object> response = buildResponse(query, author, language, yearStr, results);
+      response.put("total", sortedIds.size());
+      response.put("offset", offset);
+      if (facets) {
+        // Counted over the whole result set, not just the returned page
+        response.put("facets", facetIndex.count(sortedIds, facetLimit));
+      }
+      if (!trace.corrections.isEmpty()) response.put("corrections", trace.corrections);
       ctx.result(gson.toJson(response));
       System.out.println("Request successfully completed. " + results.size() + " results found.");
 
@@ -109,20 +305,30 @@ public class SearchAPI {
     }
   }
 
-  /* Searches the inverted index for books containing all terms in the query. */
-  private static List<Integer> searchTerm(String query) {
-    String[] terms = query.toLowerCase().trim().split("\\s+");
+  /* How the query terms were resolved: fuzzy corrections and the index terms actually used. */
+  private static class QueryTrace {
+    final Map<String, List<TermDictionary.FuzzyMatch>> corrections = new LinkedHashMap<>();
+    final Set<String> matchedTerms = new LinkedHashSet<>();
+  }
 
-    if (terms.length == 0) {
+  /*
+   * Searches the inverted index for books containing all terms in the query.
+   * With fuzzy enabled, a term missing from the dictionary is replaced by its
+   * closest dictionary terms; those are reported in the trace.
+   */
+  private static List<Integer> searchTerm(String query, boolean fuzzy, QueryTrace trace) {
+    List<String> terms = analyzeQuery(query);
+
+    if (terms.isEmpty()) {
       return new ArrayList<>();
     }
 
     // Get postings for first term
-    List<Integer> result = getPostingsForTerm(terms[0]);
+    List<Integer> result = getPostingsForTerm(terms.get(0), fuzzy, trace);
 
     // Intersect with postings for remaining terms
-    for (int i = 1; i < terms.length; i++) {
-      List<Integer> nextPostings = getPostingsForTerm(terms[i]);
+    for (int i = 1; i < terms.size(); i++) {
+      List<Integer> nextPostings = getPostingsForTerm(terms.get(i), fuzzy, trace);
       result = intersection(result, nextPostings);
 
       if (result.isEmpty()) {
@@ -133,17 +339,63 @@ public class SearchAPI {
     return result;
   }
 
+  /*
+   * Runs the query through the same analyzer as the indexer. Wildcard words
+   * ("foo*") are only folded, so their prefix is not stemmed or dropped.
+   */
+  private static List<String> analyzeQuery(String query) {
+    List<String> terms = new ArrayList<>();
+    for (String word : query.trim().split("\\s+")) {
+      if (word.endsWith("*")) {
+        String prefix = analyzer.normalize(word.substring(0, word.length() - 1));
+        if (!prefix.isEmpty()) terms.add(prefix + "*");
+      } else {
+        terms.addAll(analyzer.terms(word));
+      }
+    }
+    return terms;
+  }
+
   /*
    * Gets the list of book IDs (postings) for a single term from the inverted
-   * index.
+   * index. A trailing '*' expands the term via the term dictionary into a
+   * bounded OR-set of terms, an unknown term is expanded to its fuzzy matches.
    */
-  private static List<Integer> getPostingsForTerm(String term) {
+  private static List<Integer> getPostingsForTerm(String term, boolean fuzzy, QueryTrace trace) {
+    if (term.endsWith("*")) {
+      String prefix = term.substring(0, term.length() - 1);
+      List<String> expansions = dictionary.complete(prefix, MAX_WILDCARD_EXPANSIONS);
+      System.out.println("Expanded '" + term + "' to " + expansions.size() + " terms");
+      trace.matchedTerms.addAll(expansions);
+      return getPostingsForAnyTerm(expansions);
+    }
+    if (fuzzy && !dictionary.contains(term)) {
+      // The dictionary may lag behind the index by a few events, so check the term itself first
+      List<Integer> exact = getExactPostings(term);
+      if (!exact.isEmpty()) {
+        trace.matchedTerms.add(term);
+        return exact;
+      }
+      List<TermDictionary.FuzzyMatch> matches = dictionary.fuzzy(term, MAX_FUZZY_EXPANSIONS);
+      if (!matches.isEmpty()) {
+        System.out.println("Fuzzy expanded '" + term + "' to " + matches.size() + " terms");
+        trace.corrections.put(term, matches);
+        matches.forEach(m -> trace.matchedTerms.add(m.term));
+        return getPostingsForAnyTerm(matches.stream().map(m -> m.term).collect(Collectors.toList()));
+      }
+      return exact;
+    }
+    trace.matchedTerms.add(term);
+    return getExactPostings(term);
+  }
+
+  private static List<Integer> getExactPostings(String term) {
     try {
       /*
        * Search in the index in collections, which are separated by the first letter
        * of the term
        */
-      MongoCollection<Document> collection = indexDb.getCollection(term.substring(0, 1));
+      MongoCollection<Document> collection = indexDb.getCollection(IndexCollections.collectionFor(generation, term));
       System.out.println("Searching in the collection: " + collection.getNamespace());
       Document indexDoc = collection.find(Filters.eq("term", term)).first();
       System.out.println(indexDoc);
@@ -161,6 +413,31 @@ public class SearchAPI {
     }
   }
 
+  /* Union of the postings of all given terms, one query per bucket collection. */
+  private static List<Integer> getPostingsForAnyTerm(List<String> terms) {
+    Map<String, List<String>> byBucket = new HashMap<>();
+    for (String term : terms) {
+      byBucket.computeIfAbsent(IndexCollections.bucketFor(term), k -> new ArrayList<>()).add(term);
+    }
+
+    Set<Integer> union = new LinkedHashSet<>();
+    int current = generation;
+    for (Map.Entry<String, List<String>> entry : byBucket.entrySet()) {
+      try (MongoCursor<Document> cursor = indexDb.getCollection(IndexCollections.collectionName(current, entry.getKey()))
+          .find(Filters.in("term", entry.getValue()))
+          .projection(Projections.include("postings"))
+          .iterator()) {
+        while (cursor.hasNext()) {
+          List<Integer> postings = cursor.next().getList("postings", Integer.class);
+          if (postings != null) union.addAll(postings);
+        }
+      } catch (Exception e) {
+        System.err.println("Error fetching postings for bucket '" + entry.getKey() + "':" + e.getMessage());
+      }
+    }
+    return new ArrayList<>(union);
+  }
+
   /* Applies metadata filters (author, language, year) to the list of book IDs. */
   private static List<Integer> applyMetadataFilters(List<Integer> bookIds, String author, String language,
       String yearStr) {
@@ -303,6 +580,14 @@ public class SearchAPI {
     return response;
   }
 
+  private static int envInt(String key, int def) {
+    try {
+      return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)));
+    } catch (Exception e) {
+      return def;
+    }
+  }
+
   private static Map<String, Object> createEmptyResponse(String query, String author, String language, String yearStr) {
     return buildResponse(query, author, language, yearStr, new ArrayList<>());
   }
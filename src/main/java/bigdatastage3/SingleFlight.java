@@ -0,0 +1,40 @@
+package bigdatastage3;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key: while a call is in flight,
+ * later callers get the same future instead of starting their own. The key
+ * is forgotten as soon as the call completes, so nothing is cached.
+ */
+public class SingleFlight<K, V> {
+
+  private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+    if (existing != null) {
+      return existing;
+    }
+
+    try {
+      call.get().whenComplete((value, error) -> {
+        inFlight.remove(key, mine);
+        if (error != null) mine.completeExceptionally(error);
+        else mine.complete(value);
+      });
+    } catch (RuntimeException e) {
+      inFlight.remove(key, mine);
+      mine.completeExceptionally(e);
+    }
+    return mine;
+  }
+
+  public int inFlight() {
+    return inFlight.size();
+  }
+}
@@ -0,0 +1,337 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores what is needed to build result snippets without touching the book
+ * content in BigData.book_contents:
+ *
+ * - term_offsets: per (book, bucket) the first character offsets of every term,
+ *   deflate-compressed. A query only loads the buckets of its own terms.
+ * - passages: the book text cut into fixed pages of {@value #PAGE_CHARS} chars,
+ *   deflate-compressed. A snippet needs one page, rarely two.
+ */
+public class SnippetStore {
+
+  static final int PAGE_CHARS = 16 * 1024;
+  private static final int MAX_OFFSETS_PER_TERM = 8;
+  private static final int SNIPPET_RADIUS = 120;
+  private static final int WINDOW = 2 * SNIPPET_RADIUS;
+
+  private final MongoCollection<Document> offsetsCol;
+  private final MongoCollection<Document> passagesCol;
+
+  public SnippetStore(MongoDatabase indexDb) {
+    this.offsetsCol = indexDb.getCollection("term_offsets");
+    this.passagesCol = indexDb.getCollection("passages");
+  }
+
+  // ---------------------- index side ----------------------
+
+  /** Collects the first offsets of every term while a book is analyzed. */
+  public static class OffsetCollector implements Analyzer.TokenConsumer {
+    private final Map<String, int[]> offsets = new HashMap<>();
+
+    @Override
+    public void accept(String term, int startOffset, int endOffset) {
+      int[] list = offsets.get(term);
+      if (list == null) {
+        list = new int[MAX_OFFSETS_PER_TERM + 1]; // [0] = number of stored offsets
+        offsets.put(term, list);
+      }
+      if (list[0] < MAX_OFFSETS_PER_TERM) {
+        list[++list[0]] = startOffset;
+      }
+    }
+
+    public Set<String> terms() {
+      return offsets.keySet();
+    }
+  }
+
+  public void storeOffsets(int bookId, OffsetCollector collector) throws IOException {
+    // Term offsets, one document per bucket
+    Map<String, TreeMap<String, int[]>> byBucket = new HashMap<>();
+    collector.offsets.forEach((term, list) ->
+        byBucket.computeIfAbsent(IndexCollections.bucketFor(term), k -> new TreeMap<>()).put(term, list));
+
+    List<WriteModel<Document>> offsetWrites = new ArrayList<>();
+    for (Map.Entry<String, TreeMap<String, int[]>> entry : byBucket.entrySet()) {
+      offsetWrites.add(new ReplaceOneModel<>(
+          Filters.eq("_id", bookId + ":" + entry.getKey()),
+          new Document("_id", bookId + ":" + entry.getKey())
+              .append("book", bookId)
+              .append("bucket", entry.getKey())
+              .append("data", new Binary(encodeOffsets(entry.getValue()))),
+          new ReplaceOptions().upsert(true)));
+    }
+    if (!offsetWrites.isEmpty()) {
+      offsetsCol.bulkWrite(offsetWrites, new BulkWriteOptions().ordered(false));
+    }
+    offsetsCol.deleteMany(Filters.and(Filters.eq("book", bookId), Filters.nin("bucket", byBucket.keySet())));
+  }
+
+  public PassageWriter passageWriter(int bookId) {
+    return new PassageWriter(bookId);
+  }
+
+  /**
+   * Receives the book text in order while it is streamed through the
+   * analyzer. Every full page is compressed right away, so only the
+   * compressed pages are held until close() writes them.
+   */
+  public class PassageWriter {
+    private final int bookId;
+    private final StringBuilder page = new StringBuilder(PAGE_CHARS);
+    private final List<WriteModel<Document>> writes = new ArrayList<>();
+
+    private PassageWriter(int bookId) {
+      this.bookId = bookId;
+    }
+
+    public void append(CharSequence text) throws IOException {
+      int pos = 0;
+      while (pos < text.length()) {
+        int n = Math.min(PAGE_CHARS - page.length(), text.length() - pos);
+        page.append(text, pos, pos + n);
+        pos += n;
+        if (page.length() == PAGE_CHARS) flushPage();
+      }
+    }
+
+    private void flushPage() throws IOException {
+      int number = writes.size();
+      writes.add(new ReplaceOneModel<>(
+          Filters.eq("_id", bookId + ":" + number),
+          new Document("_id", bookId + ":" + number)
+              .append("book", bookId)
+              .append("page", number)
+              .append("data", new Binary(deflate(page.toString().getBytes(StandardCharsets.UTF_8)))),
+          new ReplaceOptions().upsert(true)));
+      page.setLength(0);
+    }
+
+    public void close() throws IOException {
+      if (page.length() > 0) flushPage();
+      if (!writes.isEmpty()) {
+        passagesCol.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+      }
+      passagesCol.deleteMany(Filters.and(Filters.eq("book", bookId), Filters.gte("page", writes.size())));
+    }
+  }
+
+  /** Removes the term offsets and passages of a deleted book. */
+  public void remove(int bookId) {
+    offsetsCol.deleteMany(Filters.eq("book", bookId));
+    passagesCol.deleteMany(Filters.eq("book", bookId));
+  }
+
+  // ---------------------- search side ----------------------
+
+  /**
+   * Builds one highlighted snippet per book. Loads only the offset documents of
+   * the query term buckets and the pages around the best matching position.
+   */
+  public Map<Integer, String> snippets(Collection<Integer> bookIds, Set<String> terms, Analyzer analyzer) {
+    Map<Integer, String> out = new HashMap<>();
+    if (bookIds.isEmpty() || terms.isEmpty()) return out;
+
+    Set<String> buckets = new HashSet<>();
+    for (String term : terms) buckets.add(IndexCollections.bucketFor(term));
+
+    List<String> offsetIds = new ArrayList<>();
+    for (int bookId : bookIds) {
+      for (String bucket : buckets) offsetIds.add(bookId + ":" + bucket);
+    }
+
+    // book -> all (offset, term) hits of query terms
+    Map<Integer, List<int[]>> hits = new HashMap<>();
+    List<String> termList = new ArrayList<>(terms);
+    try (MongoCursor<Document> cursor = offsetsCol.find(Filters.in("_id", offsetIds)).iterator()) {
+      while (cursor.hasNext()) {
+        Document doc = cursor.next();
+        int bookId = doc.getInteger("book");
+        Map<String, int[]> offsets = decodeOffsets(doc.get("data", Binary.class).getData(), terms);
+        offsets.forEach((term, list) -> {
+          for (int i = 1; i <= list[0]; i++) {
+            hits.computeIfAbsent(bookId, k -> new ArrayList<>()).add(new int[] { list[i], termList.indexOf(term) });
+          }
+        });
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to decode term offsets: " + e.getMessage());
+      return out;
+    }
+
+    // Pick the window covering the most distinct terms, then fetch its pages
+    Map<Integer, Integer> centers = new HashMap<>();
+    Set<String> pageIds = new HashSet<>();
+    hits.forEach((bookId, list) -> {
+      int center = bestWindow(list);
+      centers.put(bookId, center);
+      int from = Math.max(0, center - SNIPPET_RADIUS);
+      for (int page = from / PAGE_CHARS; page <= (center + SNIPPET_RADIUS) / PAGE_CHARS; page++) {
+        pageIds.add(bookId + ":" + page);
+      }
+    });
+    if (pageIds.isEmpty()) return out;
+
+    Map<String, String> pages = new HashMap<>();
+    try (MongoCursor<Document> cursor = passagesCol.find(Filters.in("_id", pageIds)).iterator()) {
+      while (cursor.hasNext()) {
+        Document doc = cursor.next();
+        pages.put(doc.getString("_id"),
+            new String(inflate(doc.get("data", Binary.class).getData()), StandardCharsets.UTF_8));
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to decode passages: " + e.getMessage());
+      return out;
+    }
+
+    centers.forEach((bookId, center) -> {
+      String snippet = buildSnippet(bookId, center, pages, terms, analyzer);
+      if (snippet != null) out.put(bookId, snippet);
+    });
+    return out;
+  }
+
+  private static int bestWindow(List<int[]> hits) {
+    hits.sort(Comparator.comparingInt(h -> h[0]));
+    int bestStart = hits.get(0)[0];
+    int bestScore = 0;
+    for (int i = 0; i < hits.size(); i++) {
+      Set<Integer> distinct = new HashSet<>();
+      for (int j = i; j < hits.size() && hits.get(j)[0] - hits.get(i)[0] <= WINDOW; j++) {
+        distinct.add(hits.get(j)[1]);
+      }
+      if (distinct.size() > bestScore) {
+        bestScore = distinct.size();
+        bestStart = hits.get(i)[0];
+      }
+    }
+    return bestStart + SNIPPET_RADIUS / 4;
+  }
+
+  private static String buildSnippet(int bookId, int center, Map<String, String> pages, Set<String> terms,
+      Analyzer analyzer) {
+    int from = Math.max(0, center - SNIPPET_RADIUS);
+    int to = center + SNIPPET_RADIUS;
+
+    StringBuilder window = new StringBuilder();
+    int windowStart = (from / PAGE_CHARS) * PAGE_CHARS;
+    for (int page = from / PAGE_CHARS; page <= to / PAGE_CHARS; page++) {
+      String text = pages.get(bookId + ":" + page);
+      if (text == null) break;
+      window.append(text);
+    }
+    if (window.length() == 0) return null;
+
+    int start = Math.min(from - windowStart, window.length());
+    int end = Math.min(to - windowStart, window.length());
+    // Do not cut words in half
+    while (start > 0 && !Character.isWhitespace(window.charAt(start - 1))) start--;
+    while (end < window.length() && !Character.isWhitespace(window.charAt(end))) end++;
+    String text = window.substring(start, end);
+
+    StringBuilder sb = new StringBuilder();
+    if (start + windowStart > 0) sb.append("… ");
+    int[] last = { 0 };
+    analyzer.analyze(text, (term, s, e) -> {
+      if (terms.contains(term)) {
+        appendEscaped(sb, text, last[0], s);
+        sb.append("<em>");
+        appendEscaped(sb, text, s, e);
+        sb.append("</em>");
+        last[0] = e;
+      }
+    });
+    appendEscaped(sb, text, last[0], text.length());
+    if (end < window.length()) sb.append(" …");
+    return sb.toString().replaceAll("\\s+", " ").trim();
+  }
+
+  /** The snippet is HTML with <em> around matches, so the book text itself must not carry markup. */
+  private static void appendEscaped(StringBuilder sb, String text, int from, int to) {
+    for (int i = from; i < to; i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<' -> sb.append("&lt;");
+        case '>' -> sb.append("&gt;");
+        case '&' -> sb.append("&amp;");
+        case '"' -> sb.append("&quot;");
+        case '\'' -> sb.append("&#39;");
+        default -> sb.append(c);
+      }
+    }
+  }
+
+  // ---------------------- encoding ----------------------
+
+  private static byte[] encodeOffsets(SortedMap<String, int[]> offsets) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+      out.writeInt(offsets.size());
+      for (Map.Entry<String, int[]> entry : offsets.entrySet()) {
+        int[] list = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeByte(list[0]);
+        int previous = 0;
+        for (int i = 1; i <= list[0]; i++) {
+          out.writeInt(list[i] - previous); // deltas compress better
+          previous = list[i];
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Map<String, int[]> decodeOffsets(byte[] data, Set<String> wanted) throws IOException {
+    Map<String, int[]> out = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String term = in.readUTF();
+        int n = in.readByte();
+        int[] list = new int[n + 1];
+        list[0] = n;
+        int previous = 0;
+        for (int j = 1; j <= n; j++) {
+          previous += in.readInt();
+          list[j] = previous;
+        }
+        if (wanted.contains(term)) out.put(term, list);
+      }
+    }
+    return out;
+  }
+
+  private static byte[] deflate(byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+    try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+      out.write(data);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] data) throws IOException {
+    try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+      return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package bigdatastage3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Default analyzer chain:
+ * 1. Unicode-aware tokenization (runs of letters, combining marks included)
+ * 2. Case and accent folding (é -> e, ß -> ss, ...)
+ * 3. Stopword removal
+ * 4. Optional light stemming (plural forms only)
+ *
+ * Configuration (environment):
+ * - ANALYZER_STOPWORDS: "default", "none", a comma separated list or a path to a file with one word per line
+ * - ANALYZER_STEMMING: "true" to enable stemming
+ */
+public class StandardAnalyzer implements Analyzer {
+
+  private static final int MIN_TOKEN_LENGTH = 2;
+
+  static final Set<String> DEFAULT_STOPWORDS = Set.of(
+      "a", "about", "after", "all", "also", "am", "an", "and", "any", "are", "as", "at",
+      "be", "been", "before", "being", "but", "by", "can", "could", "did", "do", "does",
+      "for", "from", "had", "has", "have", "he", "her", "here", "him", "his", "how",
+      "if", "in", "into", "is", "it", "its", "me", "more", "my", "no", "not", "now",
+      "of", "on", "one", "or", "our", "out", "said", "she", "so", "some", "than", "that",
+      "the", "their", "them", "then", "there", "these", "they", "this", "those", "to",
+      "up", "upon", "us", "very", "was", "we", "were", "what", "when", "which", "who",
+      "will", "with", "would", "you", "your");
+
+  private final Set<String> stopwords;
+  private final boolean stemming;
+
+  public StandardAnalyzer(Set<String> stopwords, boolean stemming) {
+    this.stopwords = stopwords;
+    this.stemming = stemming;
+  }
+
+  public static StandardAnalyzer fromEnv() {
+    boolean stemming = Boolean.parseBoolean(System.getenv().getOrDefault("ANALYZER_STEMMING", "false"));
+    return new StandardAnalyzer(loadStopwords(System.getenv().getOrDefault("ANALYZER_STOPWORDS", "default")),
+        stemming);
+  }
+
+  @Override
+  public String signature() {
+    return "standard;stemming=" + stemming + ";stopwords=" + Integer.toHexString(stopwords.hashCode());
+  }
+
+  @Override
+  public void analyze(CharSequence text, TokenConsumer consumer) {
+    if (text == null) return;
+
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      // skip separators
+      while (i < length && !isTokenChar(Character.codePointAt(text, i))) {
+        i += Character.charCount(Character.codePointAt(text, i));
+      }
+      int start = i;
+      while (i < length && isTokenChar(Character.codePointAt(text, i))) {
+        i += Character.charCount(Character.codePointAt(text, i));
+      }
+      if (i > start) {
+        String term = fold(text.subSequence(start, i).toString());
+        if (term.length() >= MIN_TOKEN_LENGTH && !stopwords.contains(term)) {
+          consumer.accept(stemming ? stem(term) : term, start, i);
+        }
+      }
+    }
+  }
+
+  @Override
+  public String normalize(String word) {
+    return word == null ? "" : fold(word.trim());
+  }
+
+  private static boolean isTokenChar(int codePoint) {
+    if (Character.isLetter(codePoint)) return true;
+    int type = Character.getType(codePoint);
+    return type == Character.NON_SPACING_MARK
+        || type == Character.COMBINING_SPACING_MARK
+        || type == Character.ENCLOSING_MARK;
+  }
+
+  /** Lower-cases and strips diacritics. ASCII tokens (the common case) take a fast path. */
+  static String fold(String token) {
+    boolean ascii = true;
+    for (int i = 0; i < token.length() && ascii; i++) {
+      ascii = token.charAt(i) < 0x80;
+    }
+    if (ascii) {
+      return token.toLowerCase(Locale.ROOT);
+    }
+
+    String decomposed = Normalizer.normalize(token.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+    StringBuilder sb = new StringBuilder(decomposed.length());
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      int type = Character.getType(c);
+      if (type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+          || type == Character.ENCLOSING_MARK) {
+        continue;
+      }
+      switch (c) {
+        case 'ß' -> sb.append("ss");
+        case 'æ' -> sb.append("ae");
+        case 'œ' -> sb.append("oe");
+        case 'ø' -> sb.append('o');
+        case 'ł' -> sb.append('l');
+        case 'đ' -> sb.append('d');
+        case 'þ' -> sb.append("th");
+        default -> sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Harman's "S" stemmer: conflates plural forms, leaves everything else untouched. */
+  static String stem(String term) {
+    int n = term.length();
+    if (n < 4 || !term.endsWith("s")) return term;
+    if (term.endsWith("ies") && !term.endsWith("eies") && !term.endsWith("aies")) {
+      return term.substring(0, n - 3) + "y";
+    }
+    if (term.endsWith("es") && !term.endsWith("aes") && !term.endsWith("ees") && !term.endsWith("oes")) {
+      return term.substring(0, n - 1);
+    }
+    if (!term.endsWith("us") && !term.endsWith("ss")) {
+      return term.substring(0, n - 1);
+    }
+    return term;
+  }
+
+  private static Set<String> loadStopwords(String spec) {
+    if (spec.isBlank() || spec.equalsIgnoreCase("default")) {
+      return DEFAULT_STOPWORDS;
+    }
+    if (spec.equalsIgnoreCase("none")) {
+      return Set.of();
+    }
+
+    List<String> words;
+    Path file = Path.of(spec);
+    if (Files.isRegularFile(file)) {
+      try {
+        words = Files.readAllLines(file, StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        System.err.println("⚠ Could not read stopword file " + spec + ", using defaults: " + e.getMessage());
+        return DEFAULT_STOPWORDS;
+      }
+    } else {
+      words = Arrays.asList(spec.split(","));
+    }
+
+    Set<String> stopwords = new HashSet<>();
+    for (String word : words) {
+      String folded = fold(word.trim());
+      if (!folded.isEmpty() && !folded.startsWith("#")) stopwords.add(folded);
+    }
+    return stopwords;
+  }
+}
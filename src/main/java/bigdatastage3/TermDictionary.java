@@ -0,0 +1,391 @@
+package bigdatastage3;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+
+import org.bson.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory dictionary of all indexed terms, kept on the search nodes.
+ *
+ * Terms are stored as a sorted, front-coded byte array: every block of
+ * {@value #BLOCK_SIZE} terms starts with one full term, the following terms
+ * only store the length of the prefix shared with their predecessor plus the
+ * remaining suffix. Terms arriving through document.indexed events are kept in
+ * a small sorted delta set and merged into the array once it grows too large.
+ *
+ * Next to every term the dictionary keeps its document frequency and a
+ * trigram index over the whole vocabulary, which is used to find candidate
+ * corrections for misspelled query terms.
+ */
+public class TermDictionary {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int MERGE_THRESHOLD = 20_000;
+
+  private volatile FrontCodedTerms terms = FrontCodedTerms.build(List.of());
+  private final ConcurrentSkipListSet<String> pending = new ConcurrentSkipListSet<>();
+  // generation the dictionary has to describe; rebuilds of any other are discarded
+  private int generation;
+
+  /** Rebuilds from now on are only kept if they read this generation. */
+  public synchronized void useGeneration(int generation) {
+    this.generation = generation;
+  }
+
+  /**
+   * Full rebuild from the posting collections of the given index generation.
+   * A rebuild that was overtaken by {@link #useGeneration(int)} while it ran
+   * is discarded, so a dictionary of a dropped generation never comes back.
+   *
+   * @return false if the result was discarded
+   */
+  public boolean rebuild(MongoDatabase indexDb, int generation) {
+    long start = System.currentTimeMillis();
+    List<Entry> all = new ArrayList<>();
+
+    // Only the term and the length of its posting list leave the server
+    Document docFreq = new Document("$size", new Document("$ifNull", List.of("$postings", List.of())));
+    for (String bucket : IndexCollections.listBuckets(indexDb, generation)) {
+      try (MongoCursor<Document> cursor = indexDb.getCollection(bucket)
+          .aggregate(List.of(Aggregates.project(Projections.fields(
+              Projections.excludeId(),
+              Projections.include("term"),
+              Projections.computed("df", docFreq)))))
+          .batchSize(10_000)
+          .iterator()) {
+        while (cursor.hasNext()) {
+          Document doc = cursor.next();
+          String term = doc.getString("term");
+          if (term != null && !term.isEmpty()) {
+            all.add(new Entry(term.getBytes(StandardCharsets.UTF_8), doc.getInteger("df", 0)));
+          }
+        }
+      }
+    }
+
+    all.sort(Entry.ORDER);
+    synchronized (this) {
+      if (generation != this.generation) {
+        System.out.printf("📖 Term dictionary of generation %d discarded, generation %d is searched%n",
+            generation, this.generation);
+        return false;
+      }
+      terms = FrontCodedTerms.build(all);
+      pending.clear();
+    }
+    System.out.printf("📖 Term dictionary rebuilt: %d terms, %d KB in %d ms%n",
+        terms.size(), terms.sizeInBytes() / 1024, System.currentTimeMillis() - start);
+    return true;
+  }
+
+  /** Adds terms that were created since the last rebuild. */
+  public void addAll(Collection<String> newTerms) {
+    for (String term : newTerms) {
+      if (term != null && !term.isEmpty() && !terms.contains(term)) {
+        pending.add(term);
+      }
+    }
+    if (pending.size() >= MERGE_THRESHOLD) {
+      mergePending();
+    }
+  }
+
+  /** Returns up to {@code limit} terms starting with the prefix, in sorted order. */
+  public List<String> complete(String prefix, int limit) {
+    if (prefix == null || prefix.isEmpty() || limit <= 0) {
+      return List.of();
+    }
+    TreeSet<String> out = new TreeSet<>(terms.withPrefix(prefix, limit));
+    for (String term : pending.tailSet(prefix)) {
+      if (!term.startsWith(prefix)) break;
+      out.add(term);
+      if (out.size() > limit) out.pollLast();
+    }
+    return new ArrayList<>(out);
+  }
+
+  public boolean contains(String term) {
+    return pending.contains(term) || terms.contains(term);
+  }
+
+  /**
+   * Finds dictionary terms within a small edit distance of the given term,
+   * ordered by weight (document frequency, discounted by distance).
+   */
+  public List<FuzzyMatch> fuzzy(String term, int maxExpansions) {
+    int maxEdits = maxEdits(term.length());
+    if (maxEdits == 0 || maxExpansions <= 0) {
+      return List.of();
+    }
+
+    FrontCodedTerms snapshot = terms;
+    List<FuzzyMatch> matches = new ArrayList<>();
+    for (TrigramIndex.Candidate c : snapshot.trigrams.search(term, maxEdits, snapshot::get)) {
+      matches.add(new FuzzyMatch(snapshot.get(c.ordinal), c.distance, snapshot.docFreq(c.ordinal)));
+    }
+
+    // The delta set is small, verifying it directly is cheaper than indexing it
+    for (String candidate : pending) {
+      if (Math.abs(candidate.length() - term.length()) > maxEdits) continue;
+      int distance = TrigramIndex.distance(term, candidate, maxEdits);
+      if (distance <= maxEdits) {
+        matches.add(new FuzzyMatch(candidate, distance, 1));
+      }
+    }
+
+    matches.sort(Comparator.comparingDouble(FuzzyMatch::weight).reversed());
+    return matches.size() > maxExpansions ? new ArrayList<>(matches.subList(0, maxExpansions)) : matches;
+  }
+
+  /** Allowed edits grow with the term length; very short terms are never corrected. */
+  static int maxEdits(int length) {
+    if (length < 3) return 0;
+    return length < 7 ? 1 : 2;
+  }
+
+  public int size() {
+    return terms.size() + pending.size();
+  }
+
+  private synchronized void mergePending() {
+    if (pending.isEmpty()) return;
+
+    List<Entry> merged = new ArrayList<>(terms.size() + pending.size());
+    terms.forEach(merged::add);
+    for (String term : pending) {
+      merged.add(new Entry(term.getBytes(StandardCharsets.UTF_8), 1));
+    }
+    merged.sort(Entry.ORDER);
+
+    // Remove duplicates in case a term was added concurrently to both sides
+    List<Entry> unique = new ArrayList<>(merged.size());
+    for (Entry entry : merged) {
+      if (unique.isEmpty() || !Arrays.equals(unique.get(unique.size() - 1).term, entry.term)) {
+        unique.add(entry);
+      }
+    }
+
+    Set<String> mergedPending = new HashSet<>(pending);
+    terms = FrontCodedTerms.build(unique);
+    pending.removeAll(mergedPending);
+  }
+
+  /** A dictionary term proposed as correction for a query term. */
+  public static final class FuzzyMatch {
+    public final String term;
+    public final int distance;
+    public final int docFreq;
+
+    FuzzyMatch(String term, int distance, int docFreq) {
+      this.term = term;
+      this.distance = distance;
+      this.docFreq = docFreq;
+    }
+
+    double weight() {
+      return Math.log1p(docFreq) / (1 + distance);
+    }
+  }
+
+  /** Term with its document frequency, used while (re)building. */
+  static final class Entry {
+    static final Comparator<Entry> ORDER = (a, b) -> Arrays.compareUnsigned(a.term, b.term);
+
+    final byte[] term;
+    final int docFreq;
+
+    Entry(byte[] term, int docFreq) {
+      this.term = term;
+      this.docFreq = docFreq;
+    }
+  }
+
+  // ---------------------- front-coded storage ----------------------
+
+  /** Immutable front-coded term array, ordered by unsigned UTF-8 bytes. */
+  static final class FrontCodedTerms {
+    private final byte[] data;
+    private final int[] blockOffsets;
+    private final int[] docFreqs;
+    private final int size;
+    private final TrigramIndex trigrams;
+
+    private FrontCodedTerms(byte[] data, int[] blockOffsets, int[] docFreqs, int size) {
+      this.data = data;
+      this.blockOffsets = blockOffsets;
+      this.docFreqs = docFreqs;
+      this.size = size;
+      this.trigrams = TrigramIndex.build(size, this::get);
+    }
+
+    static FrontCodedTerms build(List<Entry> sortedTerms) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int[] blockOffsets = new int[(sortedTerms.size() + BLOCK_SIZE - 1) / BLOCK_SIZE];
+      int[] docFreqs = new int[sortedTerms.size()];
+      byte[] previous = null;
+
+      for (int i = 0; i < sortedTerms.size(); i++) {
+        byte[] term = sortedTerms.get(i).term;
+        docFreqs[i] = sortedTerms.get(i).docFreq;
+        if (i % BLOCK_SIZE == 0) {
+          blockOffsets[i / BLOCK_SIZE] = out.size();
+          writeVarInt(out, term.length);
+          out.write(term, 0, term.length);
+        } else {
+          int lcp = commonPrefix(previous, term);
+          writeVarInt(out, lcp);
+          writeVarInt(out, term.length - lcp);
+          out.write(term, lcp, term.length - lcp);
+        }
+        previous = term;
+      }
+      return new FrontCodedTerms(out.toByteArray(), blockOffsets, docFreqs, sortedTerms.size());
+    }
+
+    int size() {
+      return size;
+    }
+
+    int sizeInBytes() {
+      return data.length + (blockOffsets.length + docFreqs.length) * Integer.BYTES;
+    }
+
+    int docFreq(int ordinal) {
+      return docFreqs[ordinal];
+    }
+
+    /** Decodes the term at the given position (at most one block of work). */
+    String get(int ordinal) {
+      BlockCursor cursor = new BlockCursor(ordinal / BLOCK_SIZE);
+      while (cursor.ordinal <= ordinal) {
+        cursor.next();
+      }
+      return new String(cursor.term, 0, cursor.length, StandardCharsets.UTF_8);
+    }
+
+    boolean contains(String term) {
+      List<String> hit = withPrefix(term, 1);
+      return !hit.isEmpty() && hit.get(0).equals(term);
+    }
+
+    List<String> withPrefix(String prefix, int limit) {
+      List<String> out = new ArrayList<>();
+      if (size == 0) return out;
+
+      byte[] p = prefix.getBytes(StandardCharsets.UTF_8);
+      BlockCursor cursor = new BlockCursor(findBlock(p));
+      while (out.size() < limit && cursor.next()) {
+        int common = Math.min(p.length, cursor.length);
+        int cmp = Arrays.compareUnsigned(cursor.term, 0, common, p, 0, common);
+        if (cursor.length >= p.length && cmp == 0) {
+          out.add(new String(cursor.term, 0, cursor.length, StandardCharsets.UTF_8));
+        } else if (cmp > 0) {
+          break;
+        }
+      }
+      return out;
+    }
+
+    void forEach(java.util.function.Consumer<Entry> action) {
+      if (size == 0) return;
+      BlockCursor cursor = new BlockCursor(0);
+      while (cursor.next()) {
+        action.accept(new Entry(Arrays.copyOf(cursor.term, cursor.length), docFreqs[cursor.ordinal - 1]));
+      }
+    }
+
+    /** Last block whose head term is smaller than the prefix (or block 0). */
+    private int findBlock(byte[] prefix) {
+      int lo = 0;
+      int hi = blockOffsets.length - 1;
+      while (lo < hi) {
+        int mid = (lo + hi + 1) >>> 1;
+        int pos = blockOffsets[mid];
+        int len = readVarInt(pos);
+        pos += varIntSize(len);
+        if (Arrays.compareUnsigned(data, pos, pos + len, prefix, 0, prefix.length) < 0) {
+          lo = mid;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return lo;
+    }
+
+    private int readVarInt(int pos) {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    /** Sequential decoder starting at the head of a block. */
+    private final class BlockCursor {
+      private int ordinal;
+      private int pos;
+      private byte[] term = new byte[64];
+      private int length;
+
+      BlockCursor(int block) {
+        this.ordinal = block * BLOCK_SIZE;
+        this.pos = blockOffsets[block];
+      }
+
+      boolean next() {
+        if (ordinal >= size) return false;
+        int lcp = 0;
+        if (ordinal % BLOCK_SIZE != 0) {
+          lcp = readVarInt(pos);
+          pos += varIntSize(lcp);
+        }
+        int suffix = readVarInt(pos);
+        pos += varIntSize(suffix);
+        if (term.length < lcp + suffix) {
+          term = Arrays.copyOf(term, Math.max(term.length * 2, lcp + suffix));
+        }
+        System.arraycopy(data, pos, term, lcp, suffix);
+        pos += suffix;
+        length = lcp + suffix;
+        ordinal++;
+        return true;
+      }
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+      int max = Math.min(a.length, b.length);
+      int i = 0;
+      while (i < max && a[i] == b[i]) i++;
+      return i;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static int varIntSize(int value) {
+      int bytes = 1;
+      while ((value & ~0x7F) != 0) {
+        value >>>= 7;
+        bytes++;
+      }
+      return bytes;
+    }
+  }
+}
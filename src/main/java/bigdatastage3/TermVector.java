@@ -0,0 +1,117 @@
+package bigdatastage3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Term frequencies of one book in a compact binary form, written by ingest
+ * (INGEST_TOKENIZE=true) and consumed by the indexer instead of the text.
+ *
+ * Terms are sorted and front-coded: per term the number of chars shared with
+ * the previous term, then the remaining UTF-8 bytes and the count, all
+ * lengths as varints. The blob is deflate-compressed.
+ */
+public class TermVector {
+
+  private final String[] terms;
+  private final int[] counts;
+
+  private TermVector(String[] terms, int[] counts) {
+    this.terms = terms;
+    this.counts = counts;
+  }
+
+  /** Counts the terms of an analyzed text. */
+  public static class Builder implements Analyzer.TokenConsumer {
+    private final Map<String, int[]> counts = new HashMap<>();
+
+    @Override
+    public void accept(String term, int startOffset, int endOffset) {
+      counts.computeIfAbsent(term, k -> new int[1])[0]++;
+    }
+
+    public TermVector build() {
+      String[] terms = counts.keySet().toArray(new String[0]);
+      Arrays.sort(terms);
+      int[] values = new int[terms.length];
+      for (int i = 0; i < terms.length; i++) values[i] = counts.get(terms[i])[0];
+      return new TermVector(terms, values);
+    }
+  }
+
+  public int size() {
+    return terms.length;
+  }
+
+  /** Distinct terms in sorted order. */
+  public List<String> terms() {
+    return Arrays.asList(terms);
+  }
+
+  public int count(int i) {
+    return counts[i];
+  }
+
+  public byte[] encode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, terms.length * 4));
+    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+      writeVarInt(out, terms.length);
+      String previous = "";
+      for (int i = 0; i < terms.length; i++) {
+        String term = terms[i];
+        int shared = 0;
+        int max = Math.min(previous.length(), term.length());
+        while (shared < max && previous.charAt(shared) == term.charAt(shared)) shared++;
+        // never split a surrogate pair between prefix and suffix
+        if (shared > 0 && shared < term.length() && Character.isLowSurrogate(term.charAt(shared))) shared--;
+
+        byte[] suffix = term.substring(shared).getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, shared);
+        writeVarInt(out, suffix.length);
+        out.write(suffix);
+        writeVarInt(out, counts[i]);
+        previous = term;
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  public static TermVector decode(byte[] data) throws IOException {
+    try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+      int size = readVarInt(in);
+      String[] terms = new String[size];
+      int[] counts = new int[size];
+      String previous = "";
+      for (int i = 0; i < size; i++) {
+        int shared = readVarInt(in);
+        byte[] suffix = new byte[readVarInt(in)];
+        in.readFully(suffix);
+        terms[i] = previous.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+        counts[i] = readVarInt(in);
+        previous = terms[i];
+      }
+      return new TermVector(terms, counts);
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
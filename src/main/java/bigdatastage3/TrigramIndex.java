@@ -0,0 +1,197 @@
+package bigdatastage3;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Character trigram index over the term dictionary, used for typo-tolerant search.
+ *
+ * Every term is padded ("$$term$") and split into trigrams; each trigram maps to
+ * the sorted ordinals of the terms that contain it. A term within edit distance k
+ * of the query shares at least (distinct query trigrams - 3k) trigrams with it,
+ * so only those candidates are verified with a bit-parallel Levenshtein check.
+ */
+public class TrigramIndex {
+
+  private final Map<String, int[]> postings;
+  private final byte[] lengths;
+
+  private TrigramIndex(Map<String, int[]> postings, byte[] lengths) {
+    this.postings = postings;
+    this.lengths = lengths;
+  }
+
+  static TrigramIndex build(int size, IntFunction<String> termAt) {
+    Map<String, IntList> lists = new HashMap<>();
+    byte[] lengths = new byte[size];
+
+    for (int ordinal = 0; ordinal < size; ordinal++) {
+      String term = termAt.apply(ordinal);
+      lengths[ordinal] = (byte) Math.min(term.length(), Byte.MAX_VALUE);
+      for (String gram : trigrams(term)) {
+        lists.computeIfAbsent(gram, g -> new IntList()).add(ordinal);
+      }
+    }
+
+    Map<String, int[]> postings = new HashMap<>(lists.size() * 2);
+    lists.forEach((gram, list) -> postings.put(gram, list.toArray()));
+    return new TrigramIndex(postings, lengths);
+  }
+
+  /** Terms within {@code maxEdits} of the query, excluding an exact match. */
+  List<Candidate> search(String query, int maxEdits, IntFunction<String> termAt) {
+    Set<String> grams = trigrams(query);
+    int threshold = grams.size() - 3 * maxEdits;
+    if (threshold < 1 || lengths.length == 0) {
+      return List.of(); // the filter would not prune anything
+    }
+
+    List<int[]> lists = new ArrayList<>(grams.size());
+    int touched = 0;
+    for (String gram : grams) {
+      int[] ordinals = postings.get(gram);
+      if (ordinals == null) continue;
+      lists.add(ordinals);
+      touched += ordinals.length;
+    }
+
+    // counts only for the ordinals the lists contain, not for the whole vocabulary
+    OverlapCounts shared = new OverlapCounts(Math.min(touched, lengths.length));
+    IntList hits = new IntList();
+    for (int[] ordinals : lists) {
+      for (int ordinal : ordinals) {
+        if (shared.increment(ordinal) == threshold) {
+          hits.add(ordinal);
+        }
+      }
+    }
+
+    List<Candidate> out = new ArrayList<>();
+    for (int i = 0; i < hits.size; i++) {
+      int ordinal = hits.values[i];
+      if (Math.abs(lengths[ordinal] - query.length()) > maxEdits && lengths[ordinal] < Byte.MAX_VALUE) continue;
+      int distance = distance(query, termAt.apply(ordinal), maxEdits);
+      if (distance > 0 && distance <= maxEdits) {
+        out.add(new Candidate(ordinal, distance));
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Levenshtein distance using Myers' bit-vector algorithm (Hyyrö's formulation
+   * for global distance). Returns a value greater than {@code max} as soon as
+   * the distance is known to exceed it.
+   */
+  static int distance(String pattern, String text, int max) {
+    int m = pattern.length();
+    if (m == 0) return text.length();
+    if (m > 64) return dynamicDistance(pattern, text);
+
+    Map<Character, Long> peq = new HashMap<>();
+    for (int i = 0; i < m; i++) {
+      peq.merge(pattern.charAt(i), 1L << i, (a, b) -> a | b);
+    }
+
+    long mask = m == 64 ? -1L : (1L << m) - 1;
+    long high = 1L << (m - 1);
+    long pv = mask;
+    long mv = 0;
+    int score = m;
+
+    for (int j = 0; j < text.length(); j++) {
+      long eq = peq.getOrDefault(text.charAt(j), 0L);
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+
+      if ((ph & high) != 0) score++;
+      else if ((mh & high) != 0) score--;
+
+      ph = (ph << 1) | 1;
+      mh = mh << 1;
+      pv = (mh | ~(xv | ph)) & mask;
+      mv = ph & xv & mask;
+
+      // Each remaining text character can lower the score by at most one
+      if (score - (text.length() - j - 1) > max) return max + 1;
+    }
+    return score;
+  }
+
+  private static int dynamicDistance(String a, String b) {
+    int[] prev = new int[b.length() + 1];
+    int[] cur = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) prev[j] = j;
+    for (int i = 1; i <= a.length(); i++) {
+      cur[0] = i;
+      for (int j = 1; j <= b.length(); j++) {
+        int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+        cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+      }
+      int[] tmp = prev;
+      prev = cur;
+      cur = tmp;
+    }
+    return prev[b.length()];
+  }
+
+  private static Set<String> trigrams(String term) {
+    String padded = "$$" + term + "$";
+    Set<String> grams = new LinkedHashSet<>();
+    for (int i = 0; i + 3 <= padded.length(); i++) {
+      grams.add(padded.substring(i, i + 3));
+    }
+    return grams;
+  }
+
+  static final class Candidate {
+    final int ordinal;
+    final int distance;
+
+    Candidate(int ordinal, int distance) {
+      this.ordinal = ordinal;
+      this.distance = distance;
+    }
+  }
+
+  /** Open-addressing ordinal -> count map, sized for the ordinals one search can touch. */
+  private static final class OverlapCounts {
+    private final int[] keys;
+    private final int[] counts;
+    private final int mask;
+
+    OverlapCounts(int maxKeys) {
+      int capacity = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) << 1; // load factor <= 0.5
+      keys = new int[capacity];
+      counts = new int[capacity];
+      mask = capacity - 1;
+      Arrays.fill(keys, -1);
+    }
+
+    int increment(int ordinal) {
+      int slot = (ordinal * 0x9E3779B9) >>> 1 & mask;
+      while (keys[slot] != ordinal && keys[slot] != -1) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = ordinal;
+      return ++counts[slot];
+    }
+  }
+
+  /** Growable int array, avoids boxing while building the posting lists. */
+  private static final class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}